@@ -4,25 +4,74 @@ import java.io.*;
 import java.net.*;
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
 import javax.swing.*;
 import javax.swing.border.*;
+import javax.swing.event.*;
 
 
 public class Client extends JFrame {
+    private static final String OPTIONS = "codec=" + MessageCodec.BINARY_CODEC + ";features=directory,ping,resume,rooms";
+    private static final long MAX_RECONNECT_DELAY_MS = 30000;
+    private static final int DIRECTORY_PAGE = 50;
+    private static final int DIRECTORY_REFRESH_MS = 5000;
+    // Inbound messages reach the screen at most this often, however fast they arrive
+    private static final int FRAME_MS = 1000 / Integer.getInteger("chat.uiFps", 30);
+    private static final int VIEW_LINES = Integer.getInteger("chat.viewLines", 1000);
+   
+    private String server;
+    private int port;
     private Socket socket;
-    private ObjectOutputStream out;
-    private ObjectInputStream in;
+    private volatile OutputStream out;
+    private DataInputStream in;
+    private volatile MessageCodec.Format format = MessageCodec.Format.SERIALIZED;
     private String username;
-    private String currentRoom;
+    // The room in the selected tab, where typed messages go
+    private volatile String currentRoom;
+    // Read by the listener thread when it resumes the session
+    private final Set<String> joinedRooms = ConcurrentHashMap.newKeySet();
+    private volatile String sessionToken;
+    private volatile boolean closing;
+    // Newest TEXT seq seen per room; only the listener thread touches it
+    private final Map<String, Long> lastSeqs = new HashMap<>();
+    // Requests still waiting for their ACK or ERROR, by request ID; EDT only
+    private final Map<String, Message.MessageType> pending = new HashMap<>();
+    private long nextRequestId;
+    // Filled by the listener thread, emptied on the EDT once per frame
+    private final Queue<Message> inbox = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean drainScheduled = new AtomicBoolean();
+    private final javax.swing.Timer drainTimer = new javax.swing.Timer(FRAME_MS, e -> drainInbox());
+    private final SimpleDateFormat timeFormat = new SimpleDateFormat("HH:mm:ss");
+    private long timestampSecond = -1;
+    private String timestamp;
    
     private DefaultListModel<String> roomListModel;
     private JList<String> roomList;
-    private JTextArea chatArea;
+    // The sidebar shows one page of the server's room directory at a time
+    private JTextField searchField;
+    private JLabel pageLabel;
+    private JButton previousPageButton;
+    private JButton nextPageButton;
+    private JToggleButton sortByNameButton;
+    private int directoryOffset;
+    private String directoryRequest;
+    // Member counts on the visible page go stale; runs only while connected
+    private final javax.swing.Timer directoryRefresh = 
+        new javax.swing.Timer(DIRECTORY_REFRESH_MS, e -> showDirectoryPage(directoryOffset));
+    private JTabbedPane chatTabs;
+    private ChatView lobbyArea;
+    private final Map<String, ChatView> roomAreas = new HashMap<>();
+    private JButton leaveButton;
     private JTextField messageField;
     private JButton sendButton;
     private JLabel currentRoomLabel;
    
     public Client() {
+        drainTimer.setRepeats(false);
         showConnectionDialog();
     }
    
@@ -58,14 +107,10 @@ public class Client extends JFrame {
     }
    
     private void connectToServer(String server, int port) {
+        this.server = server;
+        this.port = port;
         try {
-            socket = new Socket(server, port);
-            out = new ObjectOutputStream(socket.getOutputStream());
-            in = new ObjectInputStream(socket.getInputStream());
-           
-            Message connectMsg = new Message(Message.MessageType.CONNECT, username, "");
-            out.writeObject(connectMsg);
-            out.flush();
+            open(new Message(Message.MessageType.CONNECT, username, OPTIONS));
            
             initGUI();
             new Thread(new MessageListener()).start();
@@ -78,6 +123,56 @@ public class Client extends JFrame {
         }
     }
    
+    // The first message goes out serialized; the server switches to binary once it acknowledges the codec
+    private void open(Message hello) throws IOException {
+        socket = new Socket(server, port);
+        in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        format = MessageCodec.Format.SERIALIZED;
+        out = new BufferedOutputStream(socket.getOutputStream());
+        MessageCodec.writeFrame(out, hello);
+    }
+   
+    // Backs off exponentially with random jitter so a server restart is not met
+    // by every client at once, then resumes the session if the server gave us one
+    private void reconnect() {
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+        }
+        SwingUtilities.invokeLater(() -> {
+            directoryRefresh.stop();
+            notice("Connection lost, reconnecting...");
+        });
+        long delay = 500;
+        while (!closing) {
+            try {
+                Thread.sleep(ThreadLocalRandom.current().nextLong(delay / 2, delay + 1));
+            } catch (InterruptedException e) {
+                return;
+            }
+            String token = sessionToken;
+            Message hello;
+            if (token != null) {
+                String options = OPTIONS + ";session=" + token;
+                for (String room : joinedRooms) {
+                    if (lastSeqs.containsKey(room)) {
+                        options += ";seq@" + room + "=" + lastSeqs.get(room);
+                    }
+                }
+                hello = new Message(Message.MessageType.RESUME, username, options);
+            } else {
+                hello = new Message(Message.MessageType.CONNECT, username, OPTIONS);
+                SwingUtilities.invokeLater(this::leftAllRooms);
+            }
+            try {
+                open(hello);
+                return;
+            } catch (IOException e) {
+                delay = Math.min(delay * 2, MAX_RECONNECT_DELAY_MS);
+            }
+        }
+    }
+   
     private void initGUI() {
         setTitle("Chat Messenger - " + username);
         setSize(1000, 600);
@@ -142,7 +237,46 @@ public class Client extends JFrame {
        
         JScrollPane scrollPane = new JScrollPane(roomList);
         scrollPane.setBorder(null);
-        sidebar.add(scrollPane, BorderLayout.CENTER);
+       
+        searchField = new JTextField();
+        searchField.setFont(new Font("Arial", Font.PLAIN, 13));
+        searchField.setToolTipText("Search rooms by name");
+        // Waits for a pause in typing before asking the server
+        javax.swing.Timer searchDelay = new javax.swing.Timer(250, e -> showDirectoryPage(0));
+        searchDelay.setRepeats(false);
+        searchField.getDocument().addDocumentListener(new DocumentListener() {
+            public void insertUpdate(DocumentEvent e) { searchDelay.restart(); }
+            public void removeUpdate(DocumentEvent e) { searchDelay.restart(); }
+            public void changedUpdate(DocumentEvent e) { searchDelay.restart(); }
+        });
+       
+        JPanel listPanel = new JPanel(new BorderLayout(0, 5));
+        listPanel.setOpaque(false);
+        listPanel.add(searchField, BorderLayout.NORTH);
+        listPanel.add(scrollPane, BorderLayout.CENTER);
+        sidebar.add(listPanel, BorderLayout.CENTER);
+       
+        previousPageButton = new JButton("<");
+        previousPageButton.addActionListener(e -> showDirectoryPage(Math.max(0, directoryOffset - DIRECTORY_PAGE)));
+        nextPageButton = new JButton(">");
+        nextPageButton.addActionListener(e -> showDirectoryPage(directoryOffset + DIRECTORY_PAGE));
+        sortByNameButton = new JToggleButton("A-Z");
+        sortByNameButton.setToolTipText("Sort by name instead of by members");
+        sortByNameButton.addActionListener(e -> showDirectoryPage(0));
+        pageLabel = new JLabel(" ", SwingConstants.CENTER);
+        pageLabel.setForeground(Color.WHITE);
+       
+        JPanel pagePanel = new JPanel(new BorderLayout(5, 0));
+        pagePanel.setOpaque(false);
+        pagePanel.setBorder(new EmptyBorder(10, 0, 0, 0));
+        JPanel pageButtons = new JPanel(new FlowLayout(FlowLayout.RIGHT, 2, 0));
+        pageButtons.setOpaque(false);
+        pageButtons.add(previousPageButton);
+        pageButtons.add(nextPageButton);
+        pagePanel.add(sortByNameButton, BorderLayout.WEST);
+        pagePanel.add(pageLabel, BorderLayout.CENTER);
+        pagePanel.add(pageButtons, BorderLayout.EAST);
+        sidebar.add(pagePanel, BorderLayout.SOUTH);
        
         return sidebar;
     }
@@ -159,17 +293,22 @@ public class Client extends JFrame {
         currentRoomLabel.setForeground(Color.WHITE);
         headerPanel.add(currentRoomLabel, BorderLayout.WEST);
        
-        chatPanel.add(headerPanel, BorderLayout.NORTH);
+        leaveButton = new JButton("Leave");
+        leaveButton.setFont(new Font("Arial", Font.BOLD, 12));
+        leaveButton.setFocusPainted(false);
+        leaveButton.setEnabled(false);
+        leaveButton.addActionListener(e -> leaveRoom());
+        headerPanel.add(leaveButton, BorderLayout.EAST);
        
-        chatArea = new JTextArea();
-        chatArea.setEditable(false);
-        chatArea.setFont(new Font("Arial", Font.PLAIN, 14));
-        chatArea.setLineWrap(true);
-        chatArea.setWrapStyleWord(true);
-        chatArea.setMargin(new Insets(10, 10, 10, 10));
+        chatPanel.add(headerPanel, BorderLayout.NORTH);
        
-        JScrollPane chatScroll = new JScrollPane(chatArea);
-        chatPanel.add(chatScroll, BorderLayout.CENTER);
+        // One tab per joined room, all over the same connection
+        chatTabs = new JTabbedPane();
+        chatTabs.setFont(new Font("Arial", Font.PLAIN, 13));
+        lobbyArea = createChatArea();
+        chatTabs.addTab("Lobby", new JScrollPane(lobbyArea));
+        chatTabs.addChangeListener(e -> roomSelected());
+        chatPanel.add(chatTabs, BorderLayout.CENTER);
    
         JPanel inputPanel = new JPanel(new BorderLayout(10, 0));
         inputPanel.setBorder(new EmptyBorder(10, 10, 10, 10));
@@ -204,6 +343,12 @@ public class Client extends JFrame {
         return chatPanel;
     }
    
+    private ChatView createChatArea() {
+        ChatView area = new ChatView(VIEW_LINES, new Font("Arial", Font.PLAIN, 14));
+        area.setBorder(new EmptyBorder(10, 10, 10, 10));
+        return area;
+    }
+   
     private void showRoomDialog() {
         String[] options = {"Create Room", "Join Room", "Cancel"};
         int choice = JOptionPane.showOptionDialog(this,
@@ -242,8 +387,7 @@ public class Client extends JFrame {
                     msg.setRoomId(roomId);
                     msg.setRoomName(roomName);
                     msg.setPassword(password);
-                    out.writeObject(msg);
-                    out.flush();
+                    request(msg);
                 } catch (IOException e) {
                     e.printStackTrace();
                 }
@@ -269,6 +413,10 @@ public class Client extends JFrame {
     }
    
     private void attemptJoinRoom(String roomId) {
+        if (roomAreas.containsKey(roomId)) {
+            chatTabs.setSelectedComponent(roomAreas.get(roomId).getParent().getParent());
+            return;
+        }
         JPasswordField passwordField = new JPasswordField();
         JPanel panel = new JPanel(new BorderLayout());
         panel.add(new JLabel("Enter room password:"), BorderLayout.NORTH);
@@ -282,25 +430,29 @@ public class Client extends JFrame {
             try {
                 Message msg = new Message(Message.MessageType.JOIN_ROOM, username, "", roomId);
                 msg.setPassword(password);
-                out.writeObject(msg);
-                out.flush();
+                request(msg);
             } catch (IOException e) {
                 e.printStackTrace();
             }
         }
     }
    
+    // Tags the message with a request ID so its reply can be matched without waiting for it
+    private void request(Message msg) throws IOException {
+        String id = String.valueOf(++nextRequestId);
+        msg.setRequestId(id);
+        pending.put(id, msg.getType());
+        MessageCodec.writeFrame(out, msg, format);
+    }
+   
     private void sendMessage() {
         String text = messageField.getText().trim();
         if (!text.isEmpty() && currentRoom != null) {
             try {
                 Message msg = new Message(Message.MessageType.TEXT, username, text, currentRoom);
-                out.writeObject(msg);
-                out.flush();
+                MessageCodec.writeFrame(out, msg, format);
                
-                String timestamp = new SimpleDateFormat("HH:mm:ss").format(new Date());
-                chatArea.append(String.format("[%s] %s: %s\n", timestamp, username, text));
-                chatArea.setCaretPosition(chatArea.getDocument().getLength());
+                append(roomAreas.get(currentRoom), "[" + timestamp() + "] " + username + ": " + text);
                 messageField.setText("");
             } catch (IOException e) {
                 e.printStackTrace();
@@ -310,12 +462,22 @@ public class Client extends JFrame {
         }
     }
    
+    private void leaveRoom() {
+        if (currentRoom != null) {
+            try {
+                request(new Message(Message.MessageType.LEAVE_ROOM, username, "", currentRoom));
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+   
     private void disconnect() {
+        closing = true;
         try {
             if (out != null) {
                 Message msg = new Message(Message.MessageType.DISCONNECT, username, "");
-                out.writeObject(msg);
-                out.flush();
+                MessageCodec.writeFrame(out, msg, format);
             }
             if (socket != null) socket.close();
         } catch (IOException e) {
@@ -325,75 +487,341 @@ public class Client extends JFrame {
    
     class MessageListener implements Runnable {
         public void run() {
-            try {
-                while (true) {
-                    Message message = (Message) in.readObject();
-                    handleMessage(message);
+            while (!closing) {
+                try {
+                    Message message = MessageCodec.readFrame(in);
+                    if (message.getType() == Message.MessageType.PING) {
+                        // Answered right here so a busy UI never makes us look dead
+                        MessageCodec.writeFrame(out, new Message(Message.MessageType.PONG,
+                            username, message.getContent()), format);
+                        continue;
+                    }
+                    if (message.getSeq() >= 0 && message.getRoomId() != null) {
+                        lastSeqs.merge(message.getRoomId(), message.getSeq(), Math::max);
+                    }
+                    inbox.add(message);
+                    if (drainScheduled.compareAndSet(false, true)) {
+                        drainTimer.start();
+                    }
+                } catch (Exception e) {
+                    if (!closing) {
+                        System.out.println("Disconnected");
+                        reconnect();
+                    }
                 }
-            } catch (Exception e) {
-                System.out.println("Disconnected");
             }
         }
     }
    
+    // Handles everything that arrived during the last frame in one go; the chat
+    // views add their new lines once at the end instead of once per message
+    private void drainInbox() {
+        drainScheduled.set(false);
+        Message message;
+        while ((message = inbox.poll()) != null) {
+            handleMessage(message);
+        }
+    }
+   
     private void handleMessage(Message message) {
-        SwingUtilities.invokeLater(() -> {
-            switch (message.getType()) {
-                case TEXT:
-                    if (message.getRoomId() != null && message.getRoomId().equals(currentRoom)) {
-                        if (!message.getSender().equals(username)) {
-                            String timestamp = new SimpleDateFormat("HH:mm:ss").format(new Date());
-                            chatArea.append(String.format("[%s] %s: %s\n",
-                                timestamp, message.getSender(), message.getContent()));
-                            chatArea.setCaretPosition(chatArea.getDocument().getLength());
-                        }
-                    }
-                    break;
-                   
-                case NOTIFICATION:
-                 // Clear chat area when joining a new room
-                    if (message.getRoomId() != null && !message.getRoomId().isEmpty()) {
-                         String notif = message.getContent();
-                    if (notif.contains("Joined room:")) {
-                        chatArea.setText("");  // Clear previous room's messages
-                        currentRoom = message.getRoomId();
-                        String roomName = notif.substring(notif.indexOf(":") + 1).trim();
-                        currentRoomLabel.setText("Room: " + roomName);
-        }
-    }
-    
-                        chatArea.append("*** " + message.getContent() + " ***\n");
-                        chatArea.setCaretPosition(chatArea.getDocument().getLength());
-                     break;
-
-                   
-                case PASSWORD_INCORRECT:
+        switch (message.getType()) {
+            case CONNECT:
+                if (message.getContent() != null
+                        && message.getContent().contains("codec=" + MessageCodec.BINARY_CODEC)) {
+                    format = MessageCodec.Format.BINARY;
+                }
+                String token = option(message.getContent(), "session");
+                if (token != null) {
+                    sessionToken = token;
+                }
+                showDirectoryPage(0);
+                directoryRefresh.restart();
+                break;
+               
+            case RESUME:
+                // Requests in flight when the connection dropped will not be answered
+                pending.clear();
+                if ("expired".equals(message.getContent())) {
+                    leftAllRooms();
+                    notice("Reconnected, but the session had expired. Please rejoin a room");
+                } else {
+                    String lost = option(message.getContent(), "lost");
+                    notice(lost == null || lost.equals("0") ? "Reconnected"
+                        : "Reconnected, " + lost + " older messages could not be recovered");
+                }
+                showDirectoryPage(directoryOffset);
+                directoryRefresh.restart();
+                break;
+               
+            case TEXT:
+                // The server never echoes our own live messages, so any that arrive
+                // are room history replayed after joining
+                ChatView area = roomAreas.get(message.getRoomId());
+                if (area != null) {
+                    append(area, "[" + timestamp() + "] " + message.getSender() + ": " + message.getContent());
+                }
+                break;
+               
+            case NOTIFICATION:
+                notice(message.getRoomId(), message.getContent());
+                break;
+               
+            case ACK:
+                Message.MessageType request = pending.remove(message.getRequestId());
+                if (request == Message.MessageType.JOIN_ROOM) {
+                    openRoom(message.getRoomId(), message.getRoomName());
+                } else if (request == Message.MessageType.LEAVE_ROOM) {
+                    closeRoom(message.getRoomId());
+                }
+                showDirectoryPage(directoryOffset);
+                notice(message.getRoomId(), message.getContent());
+                break;
+               
+            case ERROR:
+                pending.remove(message.getRequestId());
+                String error = message.getContent();
+                if (error.startsWith("wrong_password:")) {
                     JOptionPane.showMessageDialog(this,
                         "Incorrect password! Try again.",
                         "Access Denied", JOptionPane.ERROR_MESSAGE);
-                    break;
-                   
-                case ROOM_LIST:
-                    updateRoomList(message.getContent());
-                    break;
+                } else {
+                    notice(error.substring(error.indexOf(':') + 1).trim());
+                }
+                break;
+               
+            case PASSWORD_INCORRECT:
+                JOptionPane.showMessageDialog(this,
+                    "Incorrect password! Try again.",
+                    "Access Denied", JOptionPane.ERROR_MESSAGE);
+                break;
+               
+            case ROOM_PAGE:
+            case ROOM_SEARCH:
+                pending.remove(message.getRequestId());
+                // Only the answer to the latest page or search is still wanted
+                if (message.getRequestId() != null && message.getRequestId().equals(directoryRequest)) {
+                    updateDirectory(message.getContent(), message.getType() == Message.MessageType.ROOM_SEARCH);
+                }
+                break;
+        }
+    }
+   
+    // Shown in the room's tab when it is one of ours, otherwise wherever the user is looking
+    private void notice(String roomId, String text) {
+        ChatView area = roomId == null ? null : roomAreas.get(roomId);
+        append(area != null ? area : selectedArea(), "*** " + text + " ***");
+    }
+   
+    private void notice(String text) {
+        notice(null, text);
+    }
+   
+    private void append(ChatView area, String text) {
+        area.append(text);
+    }
+   
+    // Formatting a date is slow next to everything else a message costs, and the text only changes once a second
+    private String timestamp() {
+        long now = System.currentTimeMillis();
+        if (now / 1000 != timestampSecond) {
+            timestampSecond = now / 1000;
+            timestamp = timeFormat.format(new Date(now));
+        }
+        return timestamp;
+    }
+   
+    private ChatView selectedArea() {
+        ChatView area = roomAreas.get(currentRoom);
+        return area != null ? area : lobbyArea;
+    }
+   
+    private void openRoom(String roomId, String name) {
+        ChatView area = roomAreas.get(roomId);
+        if (area == null) {
+            area = createChatArea();
+            roomAreas.put(roomId, area);
+            joinedRooms.add(roomId);
+            JScrollPane scroll = new JScrollPane(area);
+            scroll.putClientProperty("roomId", roomId);
+            chatTabs.addTab(name, scroll);
+        }
+        chatTabs.setSelectedComponent(area.getParent().getParent());
+    }
+   
+    private void closeRoom(String roomId) {
+        ChatView area = roomAreas.remove(roomId);
+        joinedRooms.remove(roomId);
+        if (area != null) {
+            chatTabs.remove(area.getParent().getParent());
+        }
+    }
+   
+    private void roomSelected() {
+        JComponent tab = (JComponent) chatTabs.getSelectedComponent();
+        String roomId = tab == null ? null : (String) tab.getClientProperty("roomId");
+        currentRoom = roomId;
+        leaveButton.setEnabled(roomId != null);
+        currentRoomLabel.setText(roomId == null ? "Select or create a room"
+            : "Room: " + chatTabs.getTitleAt(chatTabs.getSelectedIndex()));
+    }
+   
+    private void leftAllRooms() {
+        for (String roomId : new ArrayList<>(roomAreas.keySet())) {
+            closeRoom(roomId);
+        }
+    }
+   
+    // Server replies carry options as "key=value;key=value"
+    private static String option(String options, String key) {
+        if (options == null) {
+            return null;
+        }
+        for (String pair : options.split(";")) {
+            if (pair.startsWith(key + "=")) {
+                return pair.substring(key.length() + 1);
             }
-        });
+        }
+        return null;
+    }
+   
+    private void addRoomRow(String roomId, String name, String count) {
+        roomListModel.addElement(roomDisplay(roomId, name, count));
+    }
+   
+    private String roomDisplay(String roomId, String name, String count) {
+        return String.format("%s | %s (%s)", roomId, name, count + " users");
     }
    
-    private void updateRoomList(String roomData) {
+    // Asks for the page at offset: a search while there is text in the search box, else a browse
+    private void showDirectoryPage(int offset) {
+        if (out == null) {
+            return;
+        }
+        directoryOffset = offset;
+        String query = searchField.getText().trim().replace(";", "");
+        Message page = query.isEmpty()
+            ? new Message(Message.MessageType.ROOM_PAGE, username,
+                "sort=" + (sortByNameButton.isSelected() ? "name" : "members")
+                + ";offset=" + offset + ";limit=" + DIRECTORY_PAGE)
+            : new Message(Message.MessageType.ROOM_SEARCH, username,
+                "q=" + query + ";offset=" + offset + ";limit=" + DIRECTORY_PAGE);
+        try {
+            request(page);
+            directoryRequest = page.getRequestId();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+   
+    // "total=n;offset=n;more=0|1;" then one "id|name|count;" per room on the page
+    private void updateDirectory(String content, boolean search) {
+        String[] parts = content.split(";");
+        int offset = Integer.parseInt(option(content, "offset"));
+        boolean more = "1".equals(option(content, "more"));
         roomListModel.clear();
-        if (roomData != null && !roomData.trim().isEmpty()) {
-            String[] rooms = roomData.split(";");
-            for (String room : rooms) {
-                if (!room.trim().isEmpty()) {
-                    String[] parts = room.split("\\|");
-                    if (parts.length >= 3) {
-                        String display = String.format("%s | %s (%s)",
-                            parts[0].trim(), parts[1].trim(), parts[2].trim() + " users");
-                        roomListModel.addElement(display);
-                    }
-                }
+        for (int i = 3; i < parts.length; i++) {
+            String[] room = parts[i].split("\\|");
+            if (room.length >= 3) {
+                addRoomRow(room[0].trim(), room[1].trim(), room[2].trim());
+            }
+        }
+        int shown = roomListModel.size();
+        pageLabel.setText(shown == 0 ? "No rooms"
+            : (offset + 1) + "-" + (offset + shown) + (search ? "" : " of " + option(content, "total")));
+        previousPageButton.setEnabled(offset > 0);
+        nextPageButton.setEnabled(more);
+    }
+   
+    /**
+     * A chat log that keeps only its newest lines. Rows have a fixed height, so
+     * the list lays out and paints just the rows in view no matter how many it
+     * holds; a line too long for the window is cut short and shown whole as a
+     * tooltip. Lines appended on the EDT are added together at the end of the
+     * current event, which for a drained inbox means once per frame.
+     */
+    static final class ChatView extends JList<String> {
+        private static final long serialVersionUID = 1L;
+        private final Lines lines;
+        private final List<String> pending = new ArrayList<>();
+
+        ChatView(int capacity, Font font) {
+            super(new Lines(capacity));
+            lines = (Lines) getModel();
+            setFont(font);
+            setFixedCellHeight(getFontMetrics(font).getHeight() + 4);
+            // Any fixed width stops the list measuring every row; it still fills the viewport
+            setFixedCellWidth(1);
+        }
+
+        void append(String line) {
+            if (pending.isEmpty()) {
+                SwingUtilities.invokeLater(this::flush);
+            }
+            pending.add(line);
+        }
+
+        void flush() {
+            if (pending.isEmpty()) {
+                return;
+            }
+            // Follow new lines only while the user has not scrolled up to read
+            boolean following = getLastVisibleIndex() >= lines.getSize() - 1;
+            Rectangle visible = getVisibleRect();
+            int evicted = lines.addAll(pending);
+            pending.clear();
+            if (following) {
+                ensureIndexIsVisible(lines.getSize() - 1);
+            } else if (evicted > 0) {
+                // Keep the lines being read in place as older ones drop off the top
+                visible.y = Math.max(0, visible.y - evicted * getFixedCellHeight());
+                scrollRectToVisible(visible);
+            }
+        }
+
+        public String getToolTipText(MouseEvent event) {
+            int index = locationToIndex(event.getPoint());
+            return index >= 0 && getCellBounds(index, index).contains(event.getPoint())
+                ? lines.getElementAt(index) : null;
+        }
+    }
+
+    // Ring buffer behind ChatView: appending past capacity overwrites the oldest lines
+    static final class Lines extends AbstractListModel<String> {
+        private static final long serialVersionUID = 1L;
+        private final String[] ring;
+        private int first;
+        private int size;
+
+        Lines(int capacity) {
+            ring = new String[capacity];
+        }
+
+        public int getSize() {
+            return size;
+        }
+
+        public String getElementAt(int index) {
+            return ring[(first + index) % ring.length];
+        }
+
+        // Returns how many old lines were dropped to make room
+        int addAll(List<String> added) {
+            // Of a batch bigger than the whole buffer only the tail would survive
+            int from = Math.max(0, added.size() - ring.length);
+            int count = added.size() - from;
+            int evicted = Math.max(0, size + count - ring.length);
+            if (evicted > 0) {
+                first = (first + evicted) % ring.length;
+                size -= evicted;
+                fireIntervalRemoved(this, 0, evicted - 1);
+            }
+            for (int i = from; i < added.size(); i++) {
+                ring[(first + size++) % ring.length] = added.get(i);
+            }
+            if (count > 0) {
+                fireIntervalAdded(this, size - count, size - 1);
             }
+            return evicted;
         }
     }
    
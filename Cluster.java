@@ -0,0 +1,565 @@
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Cluster mode: several server processes sharing one set of rooms.
+ *
+ * Every node is started with the same node list (chat.cluster=id@host:port,...)
+ * and places each room on one node with a consistent-hash ring, so adding a
+ * node moves only its share of the rooms. The owning node creates the room,
+ * numbers, stores and logs its messages. Clients may connect to any node: a
+ * node forwards its users' messages for a room it does not own to the owner,
+ * and subscribes to every room its users are in, so the owner sends each
+ * message once per subscribed node and that node fans it out to its own
+ * members.
+ *
+ * Room definitions and each node's member counts are pushed to every peer as
+ * they change, and in full whenever a link comes up, so any node can list all
+ * rooms with cluster-wide member counts and check join passwords itself.
+ *
+ * Nodes talk over one TCP connection per direction, in frames of
+ * [4-byte length][op][fields]. Messages inside them use the binary client
+ * encoding, so a relayed frame reaches binary clients without re-encoding.
+ * Messages for a peer whose link is down are dropped, not queued.
+ */
+class Cluster {
+    static final long GOSSIP_MS = Long.getLong("chat.gossipMs", 200);
+    static final int VIRTUAL_NODES = Integer.getInteger("chat.clusterVnodes", 128);
+    static final int LINK_QUEUE = Integer.getInteger("chat.clusterQueue", 65536);
+    private static final int MAX_LINK_FRAME = 64 << 20;
+    private static final int ROOMS_PER_FRAME = 1024;
+
+    private static final int HELLO = 1;
+    private static final int ROOMS = 2;      // room definitions and member counts
+    private static final int JOIN = 3;       // subscribe, optionally replaying history to a user
+    private static final int LEAVE = 4;      // unsubscribe
+    private static final int PUBLISH = 5;    // chat message for the owner to number and fan out
+    private static final int RELAY = 6;      // numbered chat message or notification from the owner
+    private static final int EVENT = 7;      // notification for the owner to pass on
+    private static final int HISTORY = 8;    // replayed messages for one user
+    private static final int CREATE = 9;
+    private static final int CREATED = 10;
+
+    final String self;
+    private final int port;
+    private final Map<String, Peer> peers = new LinkedHashMap<>();
+    private final TreeMap<Integer, String> ring = new TreeMap<>();
+    // Owner side: the nodes subscribed to each of our rooms
+    private final ConcurrentHashMap<String, Set<Peer>> subscribers = new ConcurrentHashMap<>();
+    // Member counts reported by other nodes: room -> node -> {version, count}
+    private final ConcurrentHashMap<String, ConcurrentHashMap<String, long[]>> reported = new ConcurrentHashMap<>();
+    private final Set<String> dirty = ConcurrentHashMap.newKeySet();
+    // Gossip thread only: the local member count last announced for each room
+    private final Map<String, Integer> announced = new HashMap<>();
+    private final AtomicLong version = new AtomicLong();
+
+    Cluster(String nodeId, String nodes) throws IOException {
+        int selfPort = -1;
+        for (String node : nodes.split(",")) {
+            String[] idAndAddress = node.trim().split("@");
+            int colon = idAndAddress[1].lastIndexOf(':');
+            String id = idAndAddress[0];
+            int nodePort = Integer.parseInt(idAndAddress[1].substring(colon + 1));
+            for (int i = 0; i < VIRTUAL_NODES; i++) {
+                ring.put(hash(id + "#" + i), id);
+            }
+            if (id.equals(nodeId)) {
+                selfPort = nodePort;
+            } else {
+                peers.put(id, new Peer(id, idAndAddress[1].substring(0, colon), nodePort));
+            }
+        }
+        if (selfPort < 0) {
+            throw new IllegalArgumentException("chat.nodeId " + nodeId + " is not in chat.cluster");
+        }
+        this.self = nodeId;
+        this.port = selfPort;
+
+        ServerSocket acceptor = new ServerSocket(port);
+        daemon("cluster-accept", () -> accept(acceptor));
+        for (Peer peer : peers.values()) {
+            daemon("cluster-link-" + peer.id, peer);
+        }
+        ScheduledExecutorService gossip = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "cluster-gossip");
+            thread.setDaemon(true);
+            return thread;
+        });
+        gossip.scheduleWithFixedDelay(this::gossip, GOSSIP_MS, GOSSIP_MS, TimeUnit.MILLISECONDS);
+    }
+
+    int size() {
+        return peers.size() + 1;
+    }
+
+    boolean owns(String roomId) {
+        return self.equals(owner(roomId));
+    }
+
+    private String owner(String roomId) {
+        Map.Entry<Integer, String> entry = ring.ceilingEntry(hash(roomId));
+        return (entry != null ? entry : ring.firstEntry()).getValue();
+    }
+
+    // FNV-1a, then the murmur3 finalizer so similar IDs spread around the ring
+    private static int hash(String key) {
+        int h = 0x811c9dc5;
+        for (int i = 0; i < key.length(); i++) {
+            h = (h ^ key.charAt(i)) * 0x01000193;
+        }
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        return h ^ (h >>> 16);
+    }
+
+    /** Sends a local user's chat message to the room's owner. False if it is unreachable. */
+    boolean publish(Server.Room room, Message message) throws IOException {
+        Message text = new Message(Message.MessageType.TEXT, message.getSender(), message.getContent(), room.roomId);
+        return ownerOf(room).send(frame(PUBLISH, null, MessageCodec.encodeFrameBytes(text, MessageCodec.Format.BINARY)));
+    }
+
+    /** Owner side: passes a message delivered here on to every other subscribed node. */
+    void relay(Server.Room room, MessageCodec.Encoded encoded, Peer except) throws IOException {
+        Set<Peer> nodes = subscribers.get(room.roomId);
+        if (nodes == null || nodes.isEmpty()) {
+            return;
+        }
+        byte[] frame = frame(RELAY, null, encoded.bytes(MessageCodec.Format.BINARY));
+        for (Peer peer : nodes) {
+            if (peer != except) {
+                peer.send(frame);
+            }
+        }
+    }
+
+    /** A notification already delivered to this node's members of the room. */
+    void roomEvent(Server.Room room, MessageCodec.Encoded encoded) throws IOException {
+        if (owns(room.roomId)) {
+            relay(room, encoded, null);
+        } else {
+            ownerOf(room).send(frame(EVENT, null, encoded.bytes(MessageCodec.Format.BINARY)));
+        }
+    }
+
+    /** Asks the owner to create a room; its answer reaches the user via roomCreated(). */
+    boolean create(String username, Message request) throws IOException {
+        return peers.get(owner(request.getRoomId())).send(
+            frame(CREATE, username, MessageCodec.encodeFrameBytes(request, MessageCodec.Format.BINARY)));
+    }
+
+    /**
+     * A local user joined a room owned elsewhere. Subscribes this node and has
+     * the owner replay history to the user: from seq on, or the usual backfill
+     * when from is negative. Sent for every join so it can never be overtaken
+     * by the unsubscribe of a member who left at the same moment.
+     */
+    void joined(Server.Room room, String username, long from) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        DataOutputStream out = begin(bytes, JOIN);
+        out.writeUTF(room.roomId);
+        out.writeUTF(username == null ? "" : username);
+        out.writeLong(from);
+        room.subscription.lock();
+        try {
+            ownerOf(room).send(end(bytes));
+        } finally {
+            room.subscription.unlock();
+        }
+    }
+
+    /** A local user left a room owned elsewhere; unsubscribes once nobody here is in it. */
+    void left(Server.Room room) throws IOException {
+        room.subscription.lock();
+        try {
+            if (room.members.length == 0) {
+                ownerOf(room).send(frame(LEAVE, room.roomId, null));
+            }
+        } finally {
+            room.subscription.unlock();
+        }
+    }
+
+    void changed(String roomId) {
+        dirty.add(roomId);
+    }
+
+    private Peer ownerOf(Server.Room room) {
+        return peers.get(owner(room.roomId));
+    }
+
+    // Announces rooms we own that peers have not heard of and local member counts that moved
+    private void gossip() {
+        List<Server.Room> changed = new ArrayList<>();
+        for (Iterator<String> it = dirty.iterator(); it.hasNext(); ) {
+            String roomId = it.next();
+            it.remove();
+            Server.Room room = Server.rooms.get(roomId);
+            if (room == null) {
+                continue;
+            }
+            Integer before = announced.get(roomId);
+            int count = room.members.length;
+            if ((before == null && (count > 0 || owns(roomId))) || (before != null && before != count)) {
+                announced.put(roomId, count);
+                changed.add(room);
+            }
+        }
+        try {
+            for (byte[] frame : roomsFrames(changed)) {
+                for (Peer peer : peers.values()) {
+                    peer.send(frame);
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private List<byte[]> roomsFrames(List<Server.Room> rooms) throws IOException {
+        List<byte[]> frames = new ArrayList<>();
+        for (int start = 0; start < rooms.size(); start += ROOMS_PER_FRAME) {
+            List<Server.Room> chunk = rooms.subList(start, Math.min(rooms.size(), start + ROOMS_PER_FRAME));
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 * chunk.size());
+            DataOutputStream out = begin(bytes, ROOMS);
+            out.writeLong(version.incrementAndGet());
+            out.writeInt(chunk.size());
+            for (Server.Room room : chunk) {
+                boolean owned = owns(room.roomId);
+                out.writeUTF(room.roomId);
+                out.writeBoolean(owned);
+                if (owned) {
+                    out.writeUTF(room.roomName);
+                    out.writeUTF(room.password == null ? "" : room.password);
+                }
+                out.writeInt(room.members.length);
+            }
+            frames.add(end(bytes));
+        }
+        return frames;
+    }
+
+    // Everything a peer needs from us after its link (re)connects
+    private List<byte[]> fullState(Peer peer) throws IOException {
+        List<Server.Room> announce = new ArrayList<>();
+        List<byte[]> frames = new ArrayList<>();
+        for (Server.Room room : Server.rooms.values()) {
+            boolean owned = owns(room.roomId);
+            if (owned || room.members.length > 0) {
+                announce.add(room);
+            }
+            if (!owned && room.members.length > 0 && peer.id.equals(owner(room.roomId))) {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+                DataOutputStream out = begin(bytes, JOIN);
+                out.writeUTF(room.roomId);
+                out.writeUTF("");
+                out.writeLong(-1);
+                frames.add(end(bytes));
+            }
+        }
+        frames.addAll(0, roomsFrames(announce));
+        return frames;
+    }
+
+    private void accept(ServerSocket acceptor) {
+        while (true) {
+            try {
+                Socket socket = acceptor.accept();
+                socket.setTcpNoDelay(true);
+                daemon("cluster-in", () -> read(socket));
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void read(Socket socket) {
+        Peer peer = null;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()))) {
+            while (true) {
+                int len = in.readInt();
+                if (len <= 0 || len > MAX_LINK_FRAME) {
+                    throw new StreamCorruptedException("Invalid link frame length: " + len);
+                }
+                byte[] frame = new byte[len];
+                in.readFully(frame);
+                DataInputStream fields = new DataInputStream(new ByteArrayInputStream(frame, 1, len - 1));
+                if (frame[0] == HELLO) {
+                    peer = peers.get(fields.readUTF());
+                    if (peer == null) {
+                        return;
+                    }
+                    ServerLog.info("node_up", null, null, 0, peer.id);
+                } else if (peer != null) {
+                    Metrics.clusterFramesIn.increment();
+                    handle(peer, frame[0], fields);
+                }
+            }
+        } catch (IOException e) {
+            // The peer went away; it resends its state when it comes back
+        } finally {
+            if (peer != null) {
+                forget(peer);
+            }
+        }
+    }
+
+    private void handle(Peer peer, int op, DataInputStream in) throws IOException {
+        switch (op) {
+            case ROOMS: {
+                long version = in.readLong();
+                int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    String roomId = in.readUTF();
+                    if (in.readBoolean()) {
+                        String name = in.readUTF();
+                        String password = in.readUTF();
+                        Server.defineRoom(roomId, name, password.isEmpty() ? null : password);
+                    }
+                    report(roomId, peer.id, version, in.readInt());
+                }
+                break;
+            }
+            case JOIN: {
+                String roomId = in.readUTF();
+                String replayTo = in.readUTF();
+                long from = in.readLong();
+                Server.Room room = Server.rooms.get(roomId);
+                if (room == null) {
+                    break;
+                }
+                subscribers.computeIfAbsent(roomId, id -> ConcurrentHashMap.newKeySet()).add(peer);
+                if (!replayTo.isEmpty()) {
+                    long end = room.history.nextSeq();
+                    List<MessageCodec.Encoded> past = from < 0
+                        ? room.history.recent(RoomHistory.BACKFILL, end) : room.history.range(from, end);
+                    ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+                    DataOutputStream out = begin(bytes, HISTORY);
+                    out.writeUTF(replayTo);
+                    out.writeInt(past.size());
+                    for (MessageCodec.Encoded message : past) {
+                        writeBytes(out, message.bytes(MessageCodec.Format.BINARY));
+                    }
+                    peer.send(end(bytes));
+                }
+                break;
+            }
+            case LEAVE: {
+                Set<Peer> nodes = subscribers.get(in.readUTF());
+                if (nodes != null) {
+                    nodes.remove(peer);
+                }
+                break;
+            }
+            case PUBLISH: {
+                Message message = MessageCodec.Encoded.ofFrame(readBytes(in)).message();
+                Server.Room room = Server.rooms.get(message.getRoomId());
+                if (room != null) {
+                    Server.publish(room, message, null);
+                }
+                break;
+            }
+            case RELAY:
+            case EVENT: {
+                MessageCodec.Encoded encoded = MessageCodec.Encoded.ofFrame(readBytes(in));
+                Message message = encoded.message();
+                Server.Room room = Server.rooms.get(message.getRoomId());
+                if (room == null) {
+                    break;
+                }
+                // The author may be connected here; nobody gets their own messages back
+                Server.ClientHandler author = Server.clients.get(message.getSender());
+                Server.ClientHandler.broadcastToRoom(room, encoded, author);
+                if (op == EVENT) {
+                    relay(room, encoded, peer);
+                }
+                break;
+            }
+            case HISTORY: {
+                Server.ClientHandler user = Server.clients.get(in.readUTF());
+                int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    MessageCodec.Encoded message = MessageCodec.Encoded.ofFrame(readBytes(in));
+                    if (user != null) {
+                        user.send(message);
+                    }
+                }
+                break;
+            }
+            case CREATE: {
+                String username = in.readUTF();
+                byte[] request = readBytes(in);
+                boolean created = Server.createRoom(MessageCodec.Encoded.ofFrame(request).message());
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream(request.length + 32);
+                DataOutputStream out = begin(bytes, CREATED);
+                out.writeUTF(username);
+                out.writeBoolean(created);
+                writeBytes(out, request);
+                peer.send(end(bytes));
+                break;
+            }
+            case CREATED: {
+                Server.ClientHandler user = Server.clients.get(in.readUTF());
+                boolean created = in.readBoolean();
+                Message request = MessageCodec.Encoded.ofFrame(readBytes(in)).message();
+                if (created) {
+                    Server.defineRoom(request.getRoomId(), request.getRoomName(), request.getPassword());
+                }
+                if (user != null) {
+                    user.roomCreated(request, created);
+                }
+                break;
+            }
+        }
+    }
+
+    private void report(String roomId, String nodeId, long version, int count) {
+        ConcurrentHashMap<String, long[]> counts = reported.computeIfAbsent(roomId, id -> new ConcurrentHashMap<>());
+        long[] previous = counts.get(nodeId);
+        // A full state sent on connect may overtake an older update still queued
+        if (previous != null && previous[0] > version) {
+            return;
+        }
+        counts.put(nodeId, new long[] { version, count });
+        recount(roomId, counts);
+    }
+
+    private void recount(String roomId, Map<String, long[]> counts) {
+        Server.Room room = Server.rooms.get(roomId);
+        if (room == null) {
+            return;
+        }
+        int total = 0;
+        for (long[] entry : counts.values()) {
+            total += (int) entry[1];
+        }
+        if (room.remoteMembers != total) {
+            room.remoteMembers = total;
+            Server.roomListUpdates.changed(roomId);
+        }
+    }
+
+    // A peer's inbound link closed: its members and subscriptions are gone until it reconnects
+    private void forget(Peer peer) {
+        ServerLog.warn("node_down", null, null, 0, peer.id);
+        for (Set<Peer> nodes : subscribers.values()) {
+            nodes.remove(peer);
+        }
+        for (Map.Entry<String, ConcurrentHashMap<String, long[]>> room : reported.entrySet()) {
+            if (room.getValue().remove(peer.id) != null) {
+                recount(room.getKey(), room.getValue());
+            }
+        }
+    }
+
+    private static DataOutputStream begin(ByteArrayOutputStream bytes, int op) throws IOException {
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(0);
+        out.writeByte(op);
+        return out;
+    }
+
+    private static byte[] end(ByteArrayOutputStream bytes) {
+        byte[] frame = bytes.toByteArray();
+        ByteBuffer.wrap(frame).putInt(0, frame.length - 4);
+        return frame;
+    }
+
+    // An op with an optional string and an optional embedded message frame
+    private static byte[] frame(int op, String text, byte[] message) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(32 + (message == null ? 0 : message.length));
+        DataOutputStream out = begin(bytes, op);
+        if (text != null) {
+            out.writeUTF(text);
+        }
+        if (message != null) {
+            writeBytes(out, message);
+        }
+        return end(bytes);
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] value) throws IOException {
+        out.writeInt(value.length);
+        out.write(value);
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        byte[] value = new byte[in.readInt()];
+        in.readFully(value);
+        return value;
+    }
+
+    private static void daemon(String name, Runnable task) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /** Our outbound link to one peer, reconnecting with backoff whenever it drops. */
+    final class Peer implements Runnable {
+        final String id;
+        private final String host;
+        private final int port;
+        private final OutboundQueue queue = new OutboundQueue(LINK_QUEUE, OutboundQueue.Overflow.DROP_OLDEST);
+        private volatile boolean connected;
+
+        Peer(String id, String host, int port) {
+            this.id = id;
+            this.host = host;
+            this.port = port;
+        }
+
+        boolean send(byte[] frame) {
+            if (!connected) {
+                return false;
+            }
+            queue.offer(frame);
+            Metrics.clusterFramesOut.increment();
+            return true;
+        }
+
+        @Override
+        public void run() {
+            long backoff = 100;
+            byte[][] batch = new byte[OutboundQueue.BATCH_SIZE][];
+            while (true) {
+                try (Socket socket = new Socket(host, port)) {
+                    socket.setTcpNoDelay(true);
+                    OutputStream out = new BufferedOutputStream(socket.getOutputStream(), 64 * 1024);
+                    queue.clear();
+                    connected = true;
+                    backoff = 100;
+                    out.write(frame(HELLO, self, null));
+                    for (byte[] frame : fullState(this)) {
+                        out.write(frame);
+                    }
+                    out.flush();
+                    while (true) {
+                        batch[0] = queue.take();
+                        int count = queue.drainTo(batch, 1, 0);
+                        for (int i = 0; i < count; i++) {
+                            out.write(batch[i]);
+                            batch[i] = null;
+                        }
+                        out.flush();
+                    }
+                } catch (IOException e) {
+                    connected = false;
+                } catch (InterruptedException e) {
+                    return;
+                }
+                try {
+                    Thread.sleep(backoff);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                backoff = Math.min(backoff * 2, 2000);
+            }
+        }
+    }
+}
@@ -0,0 +1,341 @@
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Selector-based alternative to the thread-per-connection server.
+ *
+ * A single acceptor thread hands new channels round-robin to a small pool of
+ * event loops (about one per core). Each loop owns its connections: it does
+ * the non-blocking reads and hands each frame to the same
+ * ClientHandler.handleFrame logic as the threaded server. Other threads only
+ * ever queue work onto a loop through execute().
+ */
+class EventLoop implements Runnable {
+    private final Selector selector;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    // Only touched on the loop thread; schedule() hands timers over through execute()
+    private final PriorityQueue<Timer> timers = new PriorityQueue<>();
+    private final Thread thread;
+    // Flushes copy frames in here to write them; one per loop, so it can be generous
+    private final ByteBuffer writeBuffer = ByteBuffer.allocateDirect(Math.max(OutboundQueue.WRITE_BUFFER, 64 * 1024));
+
+    EventLoop(int index) throws IOException {
+        this.selector = Selector.open();
+        this.thread = new Thread(this, "event-loop-" + index);
+    }
+
+    static void serve(int port, int loopCount) throws IOException {
+        EventLoop[] loops = new EventLoop[loopCount];
+        for (int i = 0; i < loopCount; i++) {
+            loops[i] = new EventLoop(i);
+            loops[i].thread.start();
+        }
+
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress(port));
+            int next = 0;
+            while (true) {
+                SocketChannel channel = server.accept();
+                Metrics.connectionsAccepted.increment();
+                ServerLog.info("accept", null, null, 0, channel.socket().getInetAddress());
+                loops[next].register(channel);
+                next = (next + 1) % loopCount;
+            }
+        }
+    }
+
+    void register(SocketChannel channel) {
+        execute(() -> {
+            try {
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                channel.socket().setKeepAlive(true);
+                Connection connection = new Connection(this, channel);
+                connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+            } catch (IOException e) {
+                closeQuietly(channel);
+            }
+        });
+    }
+
+    void execute(Runnable task) {
+        tasks.add(task);
+        if (Thread.currentThread() != thread) {
+            selector.wakeup();
+        }
+    }
+
+    void schedule(Runnable task, long delayMs) {
+        Timer timer = new Timer(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMs), task);
+        execute(() -> timers.add(timer));
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                long timeoutMs = nextTimeoutMs();
+                if (!tasks.isEmpty() || timeoutMs < 0) {
+                    selector.selectNow();
+                } else {
+                    selector.select(timeoutMs);
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    Connection connection = (Connection) key.attachment();
+                    if (key.isValid() && key.isReadable()) {
+                        connection.onReadable();
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        connection.flush();
+                    }
+                }
+
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    task.run();
+                }
+                long now = System.nanoTime();
+                while (!timers.isEmpty() && timers.peek().deadline - now <= 0) {
+                    timers.poll().task.run();
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    // 0 means no timer is pending (block until woken), negative means one is already due
+    private long nextTimeoutMs() {
+        Timer next = timers.peek();
+        if (next == null) {
+            return 0;
+        }
+        long remaining = next.deadline - System.nanoTime();
+        return remaining <= 0 ? -1 : Math.max(1, TimeUnit.NANOSECONDS.toMillis(remaining));
+    }
+
+    private static void closeQuietly(Channel channel) {
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    private static class Timer implements Comparable<Timer> {
+        final long deadline;
+        final Runnable task;
+
+        Timer(long deadline, Runnable task) {
+            this.deadline = deadline;
+            this.task = task;
+        }
+
+        @Override
+        public int compareTo(Timer other) {
+            return Long.compare(deadline - other.deadline, 0);
+        }
+    }
+
+    static class Connection {
+        private final EventLoop loop;
+        private final SocketChannel channel;
+        private final Server.ClientHandler handler;
+        private SelectionKey key;
+        private ByteBuffer readBuffer = ByteBuffer.allocate(8192);
+        // Frames taken from the outbound queue but not yet fully written; the
+        // first one has its leading frameOffset bytes written already
+        private final byte[][] batch = new byte[OutboundQueue.BATCH_SIZE][];
+        private int batchStart;
+        private int batchEnd;
+        private int frameOffset;
+        private final AtomicBoolean flushScheduled = new AtomicBoolean();
+        private final AtomicBoolean delayedFlushScheduled = new AtomicBoolean();
+        private boolean sniffed;
+        private volatile boolean writeBlocked;
+        private volatile boolean closed;
+
+        Connection(EventLoop loop, SocketChannel channel) {
+            this.loop = loop;
+            this.channel = channel;
+            this.handler = new Server.ClientHandler(this);
+        }
+
+        // Frames queued while a flush is pending ride along with it; with a flush
+        // delay configured, the first frame waits at most that long unless a full
+        // batch builds up first
+        void requestFlush() {
+            if (closed) {
+                return;
+            }
+            if (OutboundQueue.FLUSH_DELAY_MS == 0 || handler.outbound.depth() >= OutboundQueue.BATCH_SIZE) {
+                if (flushScheduled.compareAndSet(false, true)) {
+                    loop.execute(this::flush);
+                }
+            } else if (delayedFlushScheduled.compareAndSet(false, true)) {
+                loop.schedule(() -> {
+                    delayedFlushScheduled.set(false);
+                    flush();
+                }, OutboundQueue.FLUSH_DELAY_MS);
+            }
+        }
+        
+        // True while written frames wait for the socket to accept more
+        boolean writePending() {
+            return writeBlocked;
+        }
+        
+        void closeAsync() {
+            loop.execute(this::disconnect);
+        }
+
+        void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (key != null) {
+                key.cancel();
+            }
+            closeQuietly(channel);
+        }
+
+        private void onReadable() {
+            int needed = 0;
+            try {
+                if (channel.read(readBuffer) < 0) {
+                    disconnect();
+                    return;
+                }
+                readBuffer.flip();
+
+                if (!sniffed) {
+                    if (readBuffer.remaining() < 2) {
+                        readBuffer.compact();
+                        return;
+                    }
+                    if (MessageCodec.isLegacyStream(readBuffer.get(0) & 0xFF, readBuffer.get(1) & 0xFF)) {
+                        handOffLegacy();
+                        return;
+                    }
+                    sniffed = true;
+                }
+
+                while (!closed && readBuffer.remaining() >= MessageCodec.HEADER_SIZE) {
+                    int len = readBuffer.getInt(readBuffer.position());
+                    MessageCodec.checkLength(len);
+                    if (readBuffer.remaining() < MessageCodec.HEADER_SIZE + len) {
+                        needed = MessageCodec.HEADER_SIZE + len;
+                        break;
+                    }
+                    int start = readBuffer.position() + MessageCodec.HEADER_SIZE;
+                    readBuffer.position(start + len);
+                    handler.handleFrame(readBuffer.array(), start, len);
+                }
+            } catch (IOException | RuntimeException e) {
+                // A frame the handler chokes on would otherwise be read again on every select
+                disconnect();
+                return;
+            }
+
+            if (closed) {
+                return;
+            }
+            readBuffer.compact();
+            if (readBuffer.capacity() < needed) {
+                ByteBuffer bigger = ByteBuffer.allocate(needed);
+                readBuffer.flip();
+                bigger.put(readBuffer);
+                readBuffer = bigger;
+            }
+        }
+
+        private void flush() {
+            flushScheduled.set(false);
+            if (closed) {
+                return;
+            }
+            try {
+                // Frames move out of the queue before they are written, so a drop-oldest
+                // overflow can never discard a partially written frame
+                while (true) {
+                    if (batchStart == batchEnd) {
+                        batchStart = 0;
+                        frameOffset = 0;
+                        batchEnd = handler.outbound.drainTo(batch, 0, 0);
+                        if (batchEnd == 0) {
+                            break;
+                        }
+                    }
+                    // Copy as much as fits into the loop's buffer; whatever the socket
+                    // does not take is copied again from the frames next time
+                    ByteBuffer buffer = loop.writeBuffer;
+                    buffer.clear();
+                    for (int i = batchStart, at = frameOffset; i < batchEnd && buffer.hasRemaining(); i++, at = 0) {
+                        buffer.put(batch[i], at, Math.min(buffer.remaining(), batch[i].length - at));
+                    }
+                    buffer.flip();
+                    int written = channel.write(buffer);
+                    if (written > 0) {
+                        handler.writeProgress++;
+                    }
+                    while (written > 0) {
+                        int left = batch[batchStart].length - frameOffset;
+                        if (written < left) {
+                            frameOffset += written;
+                            break;
+                        }
+                        written -= left;
+                        frameOffset = 0;
+                        batch[batchStart++] = null;
+                    }
+                    if (buffer.hasRemaining()) {
+                        writeBlocked = true;
+                        key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                }
+                writeBlocked = false;
+                key.interestOps(SelectionKey.OP_READ);
+            } catch (IOException | InterruptedException e) {
+                disconnect();
+            }
+        }
+
+        private void disconnect() {
+            if (closed) {
+                return;
+            }
+            close();
+            handler.cleanup();
+        }
+
+        // Clients that speak a bare ObjectOutputStream cannot be decoded without
+        // blocking, so they are moved back to blocking mode on their own thread.
+        private void handOffLegacy() {
+            byte[] prefix = new byte[readBuffer.remaining()];
+            readBuffer.get(prefix);
+            closed = true;
+            key.cancel();
+            handler.detach();
+            // The cancelled key stays registered until the next select, but it is no
+            // longer valid, and configureBlocking only refuses channels with valid keys
+            loop.execute(() -> {
+                try {
+                    channel.configureBlocking(true);
+                    Server.startHandler(new Server.ClientHandler(channel.socket(), prefix));
+                } catch (IOException e) {
+                    closeQuietly(channel);
+                }
+            });
+        }
+    }
+}
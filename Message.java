@@ -5,7 +5,8 @@ public class Message implements Serializable {
     
     public enum MessageType {
         CONNECT, DISCONNECT, TEXT, JOIN_ROOM, CREATE_ROOM, 
-        LEAVE_ROOM, ROOM_LIST, NOTIFICATION, ROOM_USERS, PASSWORD_INCORRECT
+        LEAVE_ROOM, ROOM_LIST, NOTIFICATION, ROOM_USERS, PASSWORD_INCORRECT,
+        ROOM_LIST_DELTA, STATS, PING, PONG, RESUME, ACK, ERROR, ROOM_PAGE, ROOM_SEARCH
     }
     
     private MessageType type;
@@ -14,6 +15,10 @@ public class Message implements Serializable {
     private String roomId;
     private String roomName;
     private String password;
+    // Position of a TEXT in its room's history, -1 for anything else
+    private long seq = -1;
+    // Optional; the server copies it onto the ACK or ERROR answering this request
+    private String requestId;
     
     public Message(MessageType type, String sender, String content, String roomId) {
         this.type = type;
@@ -43,4 +48,10 @@ public class Message implements Serializable {
     
     public String getPassword() { return password; }
     public void setPassword(String password) { this.password = password; }
+    
+    public long getSeq() { return seq; }
+    public void setSeq(long seq) { this.seq = seq; }
+    
+    public String getRequestId() { return requestId; }
+    public void setRequestId(String requestId) { this.requestId = requestId; }
 }
@@ -0,0 +1,411 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Length-prefixed framing for Message objects.
+ *
+ * A frame is a 4-byte big-endian payload length followed by the payload, so a
+ * reader always knows where a message ends without blocking on the stream.
+ * Clients that still write a bare ObjectOutputStream are recognised by the
+ * serialization stream magic (0xACED) in their first bytes.
+ *
+ * The payload is either a self-contained serialized Message or the compact
+ * binary form:
+ *
+ *   [type ordinal][presence bitmap][varint length + UTF-8 bytes] per present field
+ *
+ * Fields appear in bitmap order; the room sequence number is a bare varint
+ * instead of a string. Serialized payloads always start with 0xAC and binary
+ * ones with a small ordinal, so decode() tells them apart on its own; which
+ * format the server sends is negotiated at CONNECT.
+ *
+ * STREAM is what legacy clients read: no length prefix, just the next object of
+ * an ObjectOutputStream. Each one is preceded by TC_RESET so the bytes do not
+ * depend on what was written to that connection before and can be shared.
+ */
+public class MessageCodec {
+    public static final int HEADER_SIZE = 4;
+    public static final int MAX_FRAME_SIZE = 1 << 20;
+    public static final String BINARY_CODEC = "binary";
+
+    public enum Format { SERIALIZED, BINARY, STREAM }
+
+    private static final Message.MessageType[] TYPES = Message.MessageType.values();
+    private static final int SENDER = 1;
+    private static final int CONTENT = 1 << 1;
+    private static final int ROOM_ID = 1 << 2;
+    private static final int ROOM_NAME = 1 << 3;
+    private static final int PASSWORD = 1 << 4;
+    private static final int SEQ = 1 << 5;
+    private static final int REQUEST_ID = 1 << 6;
+
+    public static boolean isLegacyStream(int b0, int b1) {
+        return b0 == 0xAC && b1 == 0xED;
+    }
+
+    public static byte[] encode(Message message) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        try (ObjectOutputStream oos = new ObjectOutputStream(bytes)) {
+            oos.writeObject(message);
+        }
+        return bytes.toByteArray();
+    }
+
+    public static ByteBuffer encodeFrame(Message message) throws IOException {
+        return encodeFrame(message, Format.SERIALIZED);
+    }
+
+    public static ByteBuffer encodeFrame(Message message, Format format) throws IOException {
+        return ByteBuffer.wrap(encodeFrameBytes(message, format));
+    }
+
+    public static byte[] encodeFrameBytes(Message message, Format format) throws IOException {
+        switch (format) {
+            case BINARY:
+                return encodeBinaryFrame(message);
+            case STREAM:
+                return encodeStream(message);
+            default:
+                byte[] payload = encode(message);
+                ByteBuffer frame = ByteBuffer.allocate(HEADER_SIZE + payload.length);
+                frame.putInt(payload.length).put(payload);
+                return frame.array();
+        }
+    }
+
+    public static byte[] streamHeader() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(4);
+        new ObjectOutputStream(bytes).flush();
+        return bytes.toByteArray();
+    }
+
+    private static byte[] encodeStream(Message message) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        ObjectOutputStream oos = new ObjectOutputStream(bytes);
+        oos.reset();
+        oos.writeObject(message);
+        oos.flush();
+        byte[] withHeader = bytes.toByteArray();
+        // Drop the 4-byte stream header; the connection wrote its own when it opened
+        return Arrays.copyOfRange(withHeader, 4, withHeader.length);
+    }
+
+    private static byte[] encodeBinaryFrame(Message message) {
+        byte[] sender = utf8(message.getSender());
+        byte[] content = utf8(message.getContent());
+        byte[] roomId = utf8(message.getRoomId());
+        byte[] roomName = utf8(message.getRoomName());
+        byte[] password = utf8(message.getPassword());
+        byte[] requestId = utf8(message.getRequestId());
+
+        int presence = 0;
+        int size = 2;
+        if (sender != null) { presence |= SENDER; size += fieldSize(sender); }
+        if (content != null) { presence |= CONTENT; size += fieldSize(content); }
+        if (roomId != null) { presence |= ROOM_ID; size += fieldSize(roomId); }
+        if (roomName != null) { presence |= ROOM_NAME; size += fieldSize(roomName); }
+        if (password != null) { presence |= PASSWORD; size += fieldSize(password); }
+        if (message.getSeq() >= 0) { presence |= SEQ; size += varintSize(message.getSeq()); }
+        if (requestId != null) { presence |= REQUEST_ID; size += fieldSize(requestId); }
+
+        ByteBuffer frame = ByteBuffer.allocate(HEADER_SIZE + size);
+        frame.putInt(size);
+        frame.put((byte) message.getType().ordinal());
+        frame.put((byte) presence);
+        putField(frame, sender);
+        putField(frame, content);
+        putField(frame, roomId);
+        putField(frame, roomName);
+        putField(frame, password);
+        if ((presence & SEQ) != 0) putVarint(frame, message.getSeq());
+        putField(frame, requestId);
+        return frame.array();
+    }
+
+    /**
+     * The binary frame of a chat message whose text is still the bytes the
+     * client sent, so relaying it never turns the text into a String.
+     */
+    static byte[] textFrame(byte[] sender, byte[] roomId, byte[] buf, int contentOffset, int contentLength, long seq) {
+        int size = 2 + fieldSize(sender) + varintSize(contentLength) + contentLength + fieldSize(roomId) + varintSize(seq);
+        ByteBuffer frame = ByteBuffer.allocate(HEADER_SIZE + size);
+        frame.putInt(size);
+        frame.put((byte) Message.MessageType.TEXT.ordinal());
+        frame.put((byte) (SENDER | CONTENT | ROOM_ID | SEQ));
+        putField(frame, sender);
+        putVarint(frame, contentLength);
+        frame.put(buf, contentOffset, contentLength);
+        putField(frame, roomId);
+        putVarint(frame, seq);
+        return frame.array();
+    }
+
+    public static Message decode(byte[] buf, int off, int len) throws IOException {
+        if (len > 0 && (buf[off] & 0xFF) == 0xAC) {
+            try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(buf, off, len))) {
+                return (Message) ois.readObject();
+            } catch (ClassNotFoundException | ClassCastException e) {
+                throw new StreamCorruptedException("Not a Message frame: " + e.getMessage());
+            }
+        }
+        return decodeBinary(ByteBuffer.wrap(buf, off, len));
+    }
+
+    private static Message decodeBinary(ByteBuffer in) throws IOException {
+        try {
+            int ordinal = in.get() & 0xFF;
+            if (ordinal >= TYPES.length) {
+                throw new StreamCorruptedException("Unknown message type: " + ordinal);
+            }
+            int presence = in.get() & 0xFF;
+            String sender = (presence & SENDER) != 0 ? getField(in) : null;
+            String content = (presence & CONTENT) != 0 ? getField(in) : null;
+            Message message = new Message(TYPES[ordinal], sender, content,
+                (presence & ROOM_ID) != 0 ? getField(in) : null);
+            if ((presence & ROOM_NAME) != 0) message.setRoomName(getField(in));
+            if ((presence & PASSWORD) != 0) message.setPassword(getField(in));
+            if ((presence & SEQ) != 0) message.setSeq(getVarint(in, 63));
+            if ((presence & REQUEST_ID) != 0) message.setRequestId(getField(in));
+            return message;
+        } catch (RuntimeException e) {
+            throw new StreamCorruptedException("Malformed binary frame: " + e);
+        }
+    }
+
+    public static void writeFrame(OutputStream out, Message message) throws IOException {
+        writeFrame(out, message, Format.SERIALIZED);
+    }
+
+    public static void writeFrame(OutputStream out, Message message, Format format) throws IOException {
+        out.write(encodeFrameBytes(message, format));
+        out.flush();
+    }
+
+    public static Message readFrame(DataInputStream in) throws IOException {
+        int len = in.readInt();
+        checkLength(len);
+        byte[] payload = new byte[len];
+        in.readFully(payload);
+        return decode(payload, 0, len);
+    }
+
+    public static void checkLength(int len) throws IOException {
+        if (len <= 0 || len > MAX_FRAME_SIZE) {
+            throw new StreamCorruptedException("Invalid frame length: " + len);
+        }
+    }
+
+    static byte[] utf8(String value) {
+        return value == null ? null : value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static int fieldSize(byte[] value) {
+        return varintSize(value.length) + value.length;
+    }
+
+    private static int varintSize(long value) {
+        int size = 1;
+        for (; value >= 0x80; value >>>= 7) {
+            size++;
+        }
+        return size;
+    }
+
+    private static void putField(ByteBuffer out, byte[] value) {
+        if (value == null) {
+            return;
+        }
+        putVarint(out, value.length);
+        out.put(value);
+    }
+
+    private static void putVarint(ByteBuffer out, long value) {
+        while (value >= 0x80) {
+            out.put((byte) (value | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte) value);
+    }
+
+    private static long getVarint(ByteBuffer in, int maxBits) throws IOException {
+        long value = 0;
+        for (int shift = 0; ; shift += 7) {
+            if (shift >= maxBits) {
+                throw new StreamCorruptedException("Varint too long");
+            }
+            int b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+    }
+
+    private static String getField(ByteBuffer in) throws IOException {
+        long len = getVarint(in, 35);
+        if (len < 0 || len > in.remaining()) {
+            throw new StreamCorruptedException("Field length out of range: " + len);
+        }
+        String value = new String(in.array(), in.arrayOffset() + in.position(), (int) len, StandardCharsets.UTF_8);
+        in.position(in.position() + (int) len);
+        return value;
+    }
+
+    /**
+     * Where the fields of an inbound binary TEXT payload lie, found without
+     * decoding them. Each connection reuses one for every frame it reads.
+     */
+    static final class TextFrame {
+        int contentOffset;
+        int contentLength;
+        // -1 when the client did not name a room
+        int roomIdOffset;
+        int roomIdLength;
+
+        /** False unless the payload is a binary TEXT with no fields but sender, content and room ID. */
+        boolean parse(byte[] buf, int off, int len) {
+            int end = off + len;
+            if (len < 2 || buf[off] != Message.MessageType.TEXT.ordinal()) {
+                return false;
+            }
+            int presence = buf[off + 1] & 0xFF;
+            if ((presence & CONTENT) == 0 || (presence & ~(SENDER | CONTENT | ROOM_ID)) != 0) {
+                return false;
+            }
+            int at = off + 2;
+            if ((presence & SENDER) != 0 && (at = skipField(buf, at, end)) < 0) {
+                return false;
+            }
+            contentOffset = fieldStart(buf, at, end);
+            if (contentOffset < 0) {
+                return false;
+            }
+            contentLength = fieldLength(buf, at);
+            at = contentOffset + contentLength;
+            roomIdOffset = -1;
+            roomIdLength = 0;
+            if ((presence & ROOM_ID) != 0) {
+                roomIdOffset = fieldStart(buf, at, end);
+                if (roomIdOffset < 0) {
+                    return false;
+                }
+                roomIdLength = fieldLength(buf, at);
+                at = roomIdOffset + roomIdLength;
+            }
+            return at == end;
+        }
+
+        boolean roomIdEquals(byte[] buf, byte[] roomId) {
+            if (roomIdLength != roomId.length) {
+                return false;
+            }
+            for (int i = 0; i < roomIdLength; i++) {
+                if (buf[roomIdOffset + i] != roomId[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static int skipField(byte[] buf, int at, int end) {
+            int start = fieldStart(buf, at, end);
+            return start < 0 ? -1 : start + fieldLength(buf, at);
+        }
+
+        // Offset of the field's bytes after its varint length, or -1 if it runs past end
+        private static int fieldStart(byte[] buf, int at, int end) {
+            long length = 0;
+            for (int shift = 0; shift < 35; shift += 7) {
+                if (at >= end) {
+                    return -1;
+                }
+                int b = buf[at++];
+                length |= (long) (b & 0x7F) << shift;
+                if (b >= 0) {
+                    return length <= end - at ? at : -1;
+                }
+            }
+            return -1;
+        }
+
+        // Only called after fieldStart() accepted the same field
+        private static int fieldLength(byte[] buf, int at) {
+            int length = 0;
+            for (int shift = 0; ; shift += 7) {
+                int b = buf[at++];
+                length |= (b & 0x7F) << shift;
+                if (b >= 0) {
+                    return length;
+                }
+            }
+        }
+    }
+
+    /**
+     * A message encoded at most once per format and shared by every recipient,
+     * so a broadcast costs one encode per format in use instead of one per member.
+     */
+    public static final class Encoded {
+        // Null for frames built from bytes, see ofBinary()
+        private final Message message;
+        private final AtomicReferenceArray<byte[]> frames =
+            new AtomicReferenceArray<>(Format.values().length);
+
+        public Encoded(Message message) {
+            this.message = message;
+        }
+
+        /**
+         * Wraps a binary frame the server built itself. It is only decoded if
+         * a recipient needs another format or something asks for the message.
+         */
+        static Encoded ofBinary(byte[] frame) {
+            Encoded encoded = new Encoded(null);
+            encoded.frames.set(Format.BINARY.ordinal(), frame);
+            return encoded;
+        }
+
+        /** Wraps a frame read back from storage, keeping its bytes for that format. */
+        public static Encoded ofFrame(byte[] frame) throws IOException {
+            Encoded encoded = new Encoded(decode(frame, HEADER_SIZE, frame.length - HEADER_SIZE));
+            Format format = (frame[HEADER_SIZE] & 0xFF) == 0xAC ? Format.SERIALIZED : Format.BINARY;
+            encoded.frames.set(format.ordinal(), frame);
+            return encoded;
+        }
+
+        /**
+         * The message itself. A frame built from bytes is decoded again on every
+         * call and the copy is not kept, so history entries stay just bytes.
+         */
+        public Message message() {
+            if (message != null) {
+                return message;
+            }
+            byte[] binary = frames.get(Format.BINARY.ordinal());
+            try {
+                return decode(binary, HEADER_SIZE, binary.length - HEADER_SIZE);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        public byte[] bytes(Format format) throws IOException {
+            byte[] frame = frames.get(format.ordinal());
+            if (frame == null) {
+                // Racing encoders produce identical bytes, so whichever lands first wins
+                frame = encodeFrameBytes(message(), format);
+                if (!frames.compareAndSet(format.ordinal(), null, frame)) {
+                    frame = frames.get(format.ordinal());
+                }
+            }
+            return frame;
+        }
+
+        public void writeTo(OutputStream out, Format format) throws IOException {
+            out.write(bytes(format));
+        }
+    }
+}
@@ -0,0 +1,361 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.CRC32;
+
+/**
+ * Durable, append-only log of TEXT messages, shared by all rooms.
+ *
+ * The log is a series of fixed-size memory-mapped segment files named after
+ * their starting position. Every record points back at the previous record of
+ * the same room, and the newest position per room is kept in memory, so
+ * reading a room's recent history only touches that room's records.
+ *
+ * Record layout (big-endian):
+ *
+ *   [int length][int crc32][long seq][long timestamp][long previous position]
+ *   [short room id length][room id UTF-8][binary frame of the message]
+ *
+ * append() only queues the message. A single appender thread writes everything
+ * queued in one go and then forces the segment according to chat.logFsync:
+ * "batch" after every group, "interval" at most every chat.logFsyncMs, "none"
+ * leaves it to the OS. The queue holds chat.logQueueSize records; if the disk
+ * falls that far behind, chat.logOverflow either makes the caller wait
+ * ("block", the default) or drops the oldest or the new record and counts it. Segments roll at chat.logSegmentMb and the oldest are
+ * deleted once the log exceeds chat.logRetentionMb or chat.logRetentionHours.
+ */
+class MessageLog {
+    enum Fsync { NONE, BATCH, INTERVAL }
+    enum Overflow { BLOCK, DROP_OLDEST, DROP_NEWEST }
+
+    static final long SEGMENT_BYTES = Long.getLong("chat.logSegmentMb", 64) << 20;
+    static final long RETENTION_BYTES = Long.getLong("chat.logRetentionMb", 1024) << 20;
+    static final long RETENTION_MS = TimeUnit.HOURS.toMillis(Long.getLong("chat.logRetentionHours", 168));
+    static final Fsync FSYNC = Fsync.valueOf(System.getProperty("chat.logFsync", "interval").toUpperCase());
+    static final long FSYNC_INTERVAL_MS = Long.getLong("chat.logFsyncMs", 1000);
+    static final int QUEUE_SIZE = Integer.getInteger("chat.logQueueSize", 65536);
+    static final Overflow OVERFLOW = Overflow.valueOf(
+        System.getProperty("chat.logOverflow", "block").toUpperCase().replace('-', '_'));
+
+    private static final int RECORD_HEADER = 4 + 4 + 8 + 8 + 8 + 2;
+
+    private final Path dir;
+    private final ConcurrentSkipListMap<Long, Segment> segments = new ConcurrentSkipListMap<>();
+    private final ConcurrentHashMap<String, Head> heads = new ConcurrentHashMap<>();
+    private final BlockingQueue<Pending> pending = new ArrayBlockingQueue<>(QUEUE_SIZE);
+    private final Thread appender;
+    private volatile boolean appenderParked;
+    private volatile boolean running = true;
+    private long recovered;
+
+    // Appender thread only
+    private Segment active;
+    private long lastForce = System.currentTimeMillis();
+    private boolean unforced;
+
+    private MessageLog(Path dir) {
+        this.dir = dir;
+        this.appender = new Thread(this::appendLoop, "message-log");
+        this.appender.setDaemon(true);
+    }
+
+    static MessageLog open(Path dir) throws IOException {
+        Files.createDirectories(dir);
+        MessageLog log = new MessageLog(dir);
+        log.recover();
+        log.appender.start();
+        return log;
+    }
+
+    long recoveredRecords() {
+        return recovered;
+    }
+
+    void append(String roomId, long seq, MessageCodec.Encoded message) {
+        Pending record = new Pending(roomId, seq, System.currentTimeMillis(), message);
+        while (!pending.offer(record)) {
+            if (appenderParked) {
+                LockSupport.unpark(appender);
+            }
+            if (OVERFLOW == Overflow.DROP_NEWEST) {
+                Metrics.logRecordsDropped.increment();
+                return;
+            }
+            if (OVERFLOW == Overflow.DROP_OLDEST) {
+                if (pending.poll() != null) {
+                    Metrics.logRecordsDropped.increment();
+                }
+                continue;
+            }
+            try {
+                pending.put(record);
+                break;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                Metrics.logRecordsDropped.increment();
+                return;
+            }
+        }
+        if (appenderParked) {
+            LockSupport.unpark(appender);
+        }
+    }
+
+    /** Sequence number that follows the newest logged message of the room. */
+    long nextSeq(String roomId) {
+        Head head = heads.get(roomId);
+        return head == null ? 0 : head.seq + 1;
+    }
+
+    /** Up to max of the room's newest messages with seq >= fromSeq, oldest first. */
+    List<Record> read(String roomId, long fromSeq, int max) throws IOException {
+        LinkedList<Record> records = new LinkedList<>();
+        Head head = heads.get(roomId);
+        long position = head == null ? -1 : head.position;
+        while (position >= 0 && records.size() < max) {
+            Map.Entry<Long, Segment> entry = segments.floorEntry(position);
+            if (entry == null) {
+                break;  // older records were removed by retention
+            }
+            ByteBuffer view = entry.getValue().buffer.duplicate();
+            int offset = (int) (position - entry.getKey());
+            int length = view.getInt(offset);
+            long seq = view.getLong(offset + 8);
+            if (seq < fromSeq) {
+                break;
+            }
+            int roomIdLength = view.getShort(offset + 32);
+            int frameOffset = offset + RECORD_HEADER + roomIdLength;
+            byte[] frame = new byte[offset + 4 + length - frameOffset];
+            view.position(frameOffset);
+            view.get(frame);
+            records.addFirst(new Record(seq, view.getLong(offset + 16), MessageCodec.Encoded.ofFrame(frame)));
+            position = view.getLong(offset + 24);
+        }
+        return records;
+    }
+
+    void close() {
+        running = false;
+        LockSupport.unpark(appender);
+        try {
+            appender.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void appendLoop() {
+        while (true) {
+            Pending next = pending.poll();
+            if (next != null) {
+                try {
+                    write(next);
+                } catch (IOException e) {
+                    ServerLog.warn("log_write_failed", null, next.roomId, next.seq, e);
+                }
+                continue;
+            }
+
+            // Queue drained: this group is written, now make it durable per policy
+            commit(false);
+            if (!running) {
+                commit(true);
+                return;
+            }
+            appenderParked = true;
+            if (pending.isEmpty()) {
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(FSYNC_INTERVAL_MS));
+            }
+            appenderParked = false;
+        }
+    }
+
+    private void write(Pending record) throws IOException {
+        byte[] roomId = record.roomId.getBytes(StandardCharsets.UTF_8);
+        byte[] frame = record.message.bytes(MessageCodec.Format.BINARY);
+        int length = RECORD_HEADER - 4 + roomId.length + frame.length;
+        if (active == null || active.committed + 4 + length > active.size) {
+            roll();
+        }
+        if (4 + length > active.size) {
+            ServerLog.warn("log_record_too_large", null, record.roomId, record.seq, 4 + length + " bytes");
+            return;
+        }
+
+        ByteBuffer buffer = active.buffer;
+        int offset = active.committed;
+        Head previous = heads.get(record.roomId);
+        buffer.position(offset + 8);
+        buffer.putLong(record.seq);
+        buffer.putLong(record.timestamp);
+        buffer.putLong(previous == null ? -1 : previous.position);
+        buffer.putShort((short) roomId.length);
+        buffer.put(roomId);
+        buffer.put(frame);
+        buffer.putInt(offset + 4, checksum(buffer, offset + 8, offset + 4 + length));
+        // Length goes last: a record with a zero length was never completed
+        buffer.putInt(offset, length);
+
+        active.committed = offset + 4 + length;
+        active.lastTimestamp = record.timestamp;
+        heads.put(record.roomId, new Head(record.seq, active.base + offset));
+        unforced = true;
+    }
+
+    private void commit(boolean force) {
+        if (!unforced || active == null || FSYNC == Fsync.NONE) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        if (force || FSYNC == Fsync.BATCH || now - lastForce >= FSYNC_INTERVAL_MS) {
+            active.buffer.force();
+            lastForce = now;
+            unforced = false;
+        }
+    }
+
+    private void roll() throws IOException {
+        long base = 0;
+        if (active != null) {
+            commit(true);
+            base = active.base + active.size;
+        }
+        active = Segment.map(dir.resolve(String.format("%020d.log", base)), base, SEGMENT_BYTES);
+        segments.put(base, active);
+        enforceRetention();
+    }
+
+    private void enforceRetention() throws IOException {
+        long total = 0;
+        for (Segment segment : segments.values()) {
+            total += segment.size;
+        }
+        long now = System.currentTimeMillis();
+        while (segments.size() > 1) {
+            Segment oldest = segments.firstEntry().getValue();
+            if (total <= RETENTION_BYTES && now - oldest.lastTimestamp <= RETENTION_MS) {
+                break;
+            }
+            segments.remove(oldest.base);
+            Files.deleteIfExists(oldest.path);
+            total -= oldest.size;
+        }
+    }
+
+    private void recover() throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "*.log")) {
+            for (Path file : stream) {
+                files.add(file);
+            }
+        }
+        Collections.sort(files);
+
+        for (Path file : files) {
+            long base = Long.parseLong(file.getFileName().toString().replace(".log", ""));
+            Segment segment = Segment.map(file, base, Files.size(file));
+            ByteBuffer buffer = segment.buffer;
+            int offset = 0;
+            while (offset + RECORD_HEADER <= segment.size) {
+                int length = buffer.getInt(offset);
+                if (length <= 0 || offset + 4L + length > segment.size
+                        || buffer.getInt(offset + 4) != checksum(buffer, offset + 8, offset + 4 + length)) {
+                    break;
+                }
+                int roomIdLength = buffer.getShort(offset + 32);
+                byte[] roomId = new byte[roomIdLength];
+                buffer.position(offset + RECORD_HEADER);
+                buffer.get(roomId);
+                heads.put(new String(roomId, StandardCharsets.UTF_8),
+                    new Head(buffer.getLong(offset + 8), base + offset));
+                segment.lastTimestamp = buffer.getLong(offset + 16);
+                recovered++;
+                offset += 4 + length;
+            }
+            segment.committed = offset;
+            // Clear a torn tail so its leftovers can never be read as records later
+            if (offset + 4 <= segment.size && buffer.getInt(offset) != 0) {
+                for (int i = offset; i < segment.size; i++) {
+                    buffer.put(i, (byte) 0);
+                }
+            }
+            segments.put(base, segment);
+            active = segment;
+        }
+    }
+
+    private static int checksum(ByteBuffer buffer, int from, int to) {
+        ByteBuffer region = buffer.duplicate();
+        region.limit(to).position(from);
+        CRC32 crc = new CRC32();
+        crc.update(region);
+        return (int) crc.getValue();
+    }
+
+    static final class Record {
+        final long seq;
+        final long timestamp;
+        final MessageCodec.Encoded message;
+
+        Record(long seq, long timestamp, MessageCodec.Encoded message) {
+            this.seq = seq;
+            this.timestamp = timestamp;
+            this.message = message;
+        }
+    }
+
+    private static final class Head {
+        final long seq;
+        final long position;
+
+        Head(long seq, long position) {
+            this.seq = seq;
+            this.position = position;
+        }
+    }
+
+    private static final class Pending {
+        final String roomId;
+        final long seq;
+        final long timestamp;
+        final MessageCodec.Encoded message;
+
+        Pending(String roomId, long seq, long timestamp, MessageCodec.Encoded message) {
+            this.roomId = roomId;
+            this.seq = seq;
+            this.timestamp = timestamp;
+            this.message = message;
+        }
+    }
+
+    private static final class Segment {
+        final long base;
+        final Path path;
+        final int size;
+        final MappedByteBuffer buffer;
+        volatile int committed;
+        volatile long lastTimestamp = System.currentTimeMillis();
+
+        private Segment(long base, Path path, MappedByteBuffer buffer) {
+            this.base = base;
+            this.path = path;
+            this.size = buffer.capacity();
+            this.buffer = buffer;
+        }
+
+        static Segment map(Path path, long base, long size) throws IOException {
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                // The mapping stays valid after the channel is closed
+                return new Segment(base, path, channel.map(FileChannel.MapMode.READ_WRITE, 0, size));
+            }
+        }
+    }
+}
@@ -0,0 +1,207 @@
+import com.sun.net.httpserver.HttpServer;
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.Supplier;
+
+/**
+ * Server-wide counters and latency histograms.
+ *
+ * Everything recorded on the message path is a LongAdder increment, which
+ * neither allocates nor contends (adders stripe themselves under load).
+ * Gauges such as queue depths and per-room rates are only computed when a
+ * report is built or, for rates, by a once-a-second ticker.
+ *
+ * Reports are plain text in the Prometheus exposition format and are served
+ * both as the reply to a STATS message and, when chat.metricsPort is set, over
+ * HTTP at /metrics.
+ */
+class Metrics {
+    static final int HTTP_PORT = Integer.getInteger("chat.metricsPort", 0);
+    static final int TOP_ROOMS = Integer.getInteger("chat.metricsTopRooms", 20);
+
+    static final LongAdder connectionsAccepted = new LongAdder();
+    static final LongAdder messagesIn = new LongAdder();
+    static final LongAdder messagesOut = new LongAdder();
+    static final LongAdder framesDropped = new LongAdder();
+    static final LongAdder slowDisconnects = new LongAdder();
+    static final LongAdder throttled = new LongAdder();
+    static final LongAdder floodDisconnects = new LongAdder();
+    static final LongAdder logRecordsDropped = new LongAdder();
+    static final LongAdder clusterFramesIn = new LongAdder();
+    static final LongAdder clusterFramesOut = new LongAdder();
+    // From handleMessage receiving a TEXT to the last recipient's frame being queued
+    static final Histogram fanOutNanos = new Histogram();
+
+    /** Refreshes every room's messages-per-second once a second. */
+    static void startRates(Collection<Server.Room> rooms) {
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "metrics");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleAtFixedRate(() -> {
+            for (Server.Room room : rooms) {
+                long count = room.messages.sum();
+                room.messageRate = count - room.messagesAtLastTick;
+                room.messagesAtLastTick = count;
+            }
+        }, 1, 1, TimeUnit.SECONDS);
+    }
+
+    static void serveHttp(int port, Supplier<String> report) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.createContext("/metrics", exchange -> {
+            byte[] body = report.get().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.start();
+    }
+
+    static String report(Collection<Server.Room> rooms, Collection<Server.ClientHandler> clients) {
+        long queued = 0;
+        int deepest = 0;
+        int deepestEver = 0;
+        for (Server.ClientHandler client : clients) {
+            int depth = client.outbound.depth();
+            queued += depth;
+            deepest = Math.max(deepest, depth);
+            deepestEver = Math.max(deepestEver, client.outbound.maxDepth());
+        }
+
+        StringBuilder out = new StringBuilder(2048);
+        line(out, "chat_connections_accepted_total", connectionsAccepted.sum());
+        line(out, "chat_clients", clients.size());
+        line(out, "chat_rooms", rooms.size());
+        line(out, "chat_messages_in_total", messagesIn.sum());
+        line(out, "chat_messages_out_total", messagesOut.sum());
+        line(out, "chat_frames_dropped_total", framesDropped.sum());
+        line(out, "chat_slow_client_disconnects_total", slowDisconnects.sum());
+        line(out, "chat_messages_throttled_total", throttled.sum());
+        line(out, "chat_flood_disconnects_total", floodDisconnects.sum());
+        line(out, "chat_log_events_dropped_total", ServerLog.dropped());
+        line(out, "chat_message_log_dropped_total", logRecordsDropped.sum());
+        line(out, "chat_cluster_frames_in_total", clusterFramesIn.sum());
+        line(out, "chat_cluster_frames_out_total", clusterFramesOut.sum());
+        line(out, "chat_outbound_queued", queued);
+        line(out, "chat_outbound_queue_depth_max", deepest);
+        line(out, "chat_outbound_queue_depth_max_ever", deepestEver);
+        for (double quantile : new double[] { 0.5, 0.9, 0.99, 0.999 }) {
+            out.append("chat_fanout_latency_us{quantile=\"").append(quantile).append("\"} ")
+               .append(fanOutNanos.percentile(quantile * 100) / 1000).append('\n');
+        }
+        line(out, "chat_fanout_latency_us_max", fanOutNanos.max() / 1000);
+        line(out, "chat_fanout_latency_us_count", fanOutNanos.count());
+
+        // Only the busiest rooms, so the report stays small with many rooms
+        PriorityQueue<Server.Room> busiest = new PriorityQueue<>(
+            Comparator.comparingLong((Server.Room room) -> room.messageRate));
+        for (Server.Room room : rooms) {
+            if (room.messageRate > 0 && (busiest.size() < TOP_ROOMS
+                    || room.messageRate > busiest.peek().messageRate)) {
+                busiest.add(room);
+                if (busiest.size() > TOP_ROOMS) {
+                    busiest.poll();
+                }
+            }
+        }
+        List<Server.Room> top = new ArrayList<>(busiest);
+        top.sort(Comparator.comparingLong((Server.Room room) -> room.messageRate).reversed());
+        for (Server.Room room : top) {
+            String label = "{room=\"" + room.roomId.replace("\\", "\\\\").replace("\"", "\\\"") + "\"}";
+            out.append("chat_room_messages_per_second").append(label).append(' ')
+               .append(room.messageRate).append('\n');
+            out.append("chat_room_messages_total").append(label).append(' ')
+               .append(room.messages.sum()).append('\n');
+        }
+        return out.toString();
+    }
+
+    private static void line(StringBuilder out, String name, long value) {
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    /**
+     * Log-linear histogram with 16 linear buckets per power of two (values are
+     * reported within about 6%). Each bucket is a LongAdder, so concurrent
+     * recorders do not contend and recording never allocates once warm.
+     */
+    static final class Histogram {
+        private static final int SUB_BITS = 4;
+        private final LongAdder[] buckets = new LongAdder[64 << SUB_BITS];
+        private final AtomicLong max = new AtomicLong();
+
+        Histogram() {
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        void record(long value) {
+            value = Math.max(0, value);
+            buckets[index(value)].increment();
+            long current;
+            while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+                // retry until our value is recorded or someone recorded a larger one
+            }
+        }
+
+        long count() {
+            long count = 0;
+            for (LongAdder bucket : buckets) {
+                count += bucket.sum();
+            }
+            return count;
+        }
+
+        long max() {
+            return max.get();
+        }
+
+        long percentile(double percentile) {
+            long[] counts = new long[buckets.length];
+            long total = 0;
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = buckets[i].sum();
+                total += counts[i];
+            }
+            if (total == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(total * percentile / 100.0);
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return Math.min(upperBound(i), max.get());
+                }
+            }
+            return max.get();
+        }
+
+        private static int index(long value) {
+            if (value < (1 << SUB_BITS)) {
+                return (int) value;
+            }
+            int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+            return ((shift + 1) << SUB_BITS) + (int) (value >>> shift) - (1 << SUB_BITS);
+        }
+
+        private static long upperBound(int index) {
+            int magnitude = index >>> SUB_BITS;
+            long sub = index & ((1 << SUB_BITS) - 1);
+            if (magnitude == 0) {
+                return sub;
+            }
+            int shift = magnitude - 1;
+            return (((1L << SUB_BITS) + sub) << shift) + (1L << shift) - 1;
+        }
+    }
+}
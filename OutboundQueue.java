@@ -0,0 +1,110 @@
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Bounded queue of encoded frames waiting to be written to one connection.
+ * Frames are the shared byte arrays every recipient of a broadcast gets; a
+ * writer copies them into its own reusable buffer, so queueing a frame for
+ * one more recipient allocates nothing.
+ *
+ * Senders never block on it: when the queue is full the overflow policy either
+ * drops the oldest queued frame, drops the new one, or tells the caller to
+ * disconnect the client. A single writer (the handler's writer thread or its
+ * event loop) drains it, so frames never interleave on the socket.
+ */
+class OutboundQueue {
+    enum Overflow { DROP_OLDEST, DROP_NEWEST, DISCONNECT }
+
+    static final int CAPACITY = Integer.getInteger("chat.queueSize", 1024);
+    static final Overflow OVERFLOW = Overflow.valueOf(
+        System.getProperty("chat.overflow", "drop_oldest").toUpperCase().replace('-', '_'));
+    // Most frames taken from the queue per flush, and the longest a frame may
+    // wait for others to batch with (0 = write whatever is queued right away)
+    static final int BATCH_SIZE = Integer.getInteger("chat.flushBatch", 64);
+    static final long FLUSH_DELAY_MS = Long.getLong("chat.flushDelayMs", 0);
+    // Size of the buffer frames are copied into for each socket write
+    static final int WRITE_BUFFER = Integer.getInteger("chat.writeBuffer", 8192);
+
+    private final BlockingQueue<byte[]> frames;
+    private final Overflow overflow;
+    private final AtomicInteger maxDepth = new AtomicInteger();
+    private final AtomicLong dropped = new AtomicLong();
+
+    OutboundQueue() {
+        this(CAPACITY, OVERFLOW);
+    }
+
+    OutboundQueue(int capacity, Overflow overflow) {
+        this.frames = new ArrayBlockingQueue<>(capacity);
+        this.overflow = overflow;
+    }
+
+    /** Returns false when the queue is full and the policy is to disconnect. */
+    boolean offer(byte[] frame) {
+        while (!frames.offer(frame)) {
+            if (overflow == Overflow.DISCONNECT) {
+                return false;
+            }
+            if (overflow == Overflow.DROP_NEWEST) {
+                dropped.incrementAndGet();
+                Metrics.framesDropped.increment();
+                return true;
+            }
+            if (frames.poll() != null) {
+                dropped.incrementAndGet();
+                Metrics.framesDropped.increment();
+            }
+        }
+
+        int depth = frames.size();
+        int max;
+        while (depth > (max = maxDepth.get()) && !maxDepth.compareAndSet(max, depth)) {
+            // retry until our depth is recorded or someone recorded a larger one
+        }
+        return true;
+    }
+
+    byte[] poll() {
+        return frames.poll();
+    }
+
+    byte[] take() throws InterruptedException {
+        return frames.take();
+    }
+
+    /**
+     * Moves queued frames into batch starting at index from until it is full,
+     * waiting up to delayMs in total for more to arrive. Returns the new count.
+     */
+    int drainTo(byte[][] batch, int from, long delayMs) throws InterruptedException {
+        int count = from;
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMs);
+        while (count < batch.length) {
+            byte[] next = frames.poll();
+            if (next == null) {
+                long wait = deadline - System.nanoTime();
+                if (wait <= 0 || (next = frames.poll(wait, TimeUnit.NANOSECONDS)) == null) {
+                    break;
+                }
+            }
+            batch[count++] = next;
+        }
+        return count;
+    }
+
+    void clear() {
+        frames.clear();
+    }
+
+    int depth() {
+        return frames.size();
+    }
+
+    int maxDepth() {
+        return maxDepth.get();
+    }
+
+    long dropped() {
+        return dropped.get();
+    }
+}
@@ -0,0 +1,123 @@
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+/**
+ * Per-connection inbound rate limits, one token bucket per message type.
+ *
+ * A message over its type's limit is dropped. Every drop also costs a
+ * "strike" from a slower bucket, and a client that keeps flooding until its
+ * strikes run out is disconnected. Clients that merely burst a little are
+ * told (at most once a second) that messages were dropped.
+ *
+ * Limits are chat.limit.&lt;type&gt;=rate[:burst] in messages per second, e.g.
+ * chat.limit.text=20:40; a rate of 0 means unlimited and chat.limits=false
+ * turns limiting off entirely. chat.limitStrikes (burst) and
+ * chat.limitStrikeRate (per second) size the strike bucket.
+ */
+class RateLimiter {
+    enum Verdict { ALLOW, THROTTLE, WARN, DISCONNECT }
+
+    private static final Message.MessageType[] TYPES = Message.MessageType.values();
+    private static final boolean ENABLED = !"false".equals(System.getProperty("chat.limits"));
+    private static final double[][] LIMITS = new double[TYPES.length][];
+    private static final double[] STRIKES = {
+        Double.parseDouble(System.getProperty("chat.limitStrikeRate", "1")),
+        Integer.getInteger("chat.limitStrikes", 20) };
+    private static final double[] NOTICES = { 1, 1 };
+
+    static {
+        defaultLimit(Message.MessageType.TEXT, "20:40");
+        defaultLimit(Message.MessageType.CONNECT, "1:2");
+        defaultLimit(Message.MessageType.RESUME, "1:2");
+        defaultLimit(Message.MessageType.CREATE_ROOM, "1:5");
+        defaultLimit(Message.MessageType.JOIN_ROOM, "5:10");
+        defaultLimit(Message.MessageType.LEAVE_ROOM, "5:10");
+        defaultLimit(Message.MessageType.ROOM_LIST, "2:5");
+        defaultLimit(Message.MessageType.STATS, "1:3");
+        defaultLimit(Message.MessageType.ROOM_PAGE, "5:10");
+        defaultLimit(Message.MessageType.ROOM_SEARCH, "5:10");
+        defaultLimit(Message.MessageType.PING, "1:5");
+        defaultLimit(Message.MessageType.PONG, "1:5");
+        for (Message.MessageType type : TYPES) {
+            String configured = System.getProperty("chat.limit." + type.name().toLowerCase());
+            if (configured != null) {
+                LIMITS[type.ordinal()] = parse(configured);
+            }
+        }
+    }
+
+    private final TokenBucket[] buckets = new TokenBucket[TYPES.length];
+    private final TokenBucket strikes = new TokenBucket(STRIKES);
+    private final TokenBucket notices = new TokenBucket(NOTICES);
+
+    RateLimiter() {
+        for (int i = 0; i < TYPES.length; i++) {
+            if (ENABLED && LIMITS[i] != null) {
+                buckets[i] = new TokenBucket(LIMITS[i]);
+            }
+        }
+    }
+
+    Verdict check(Message.MessageType type) {
+        TokenBucket bucket = buckets[type.ordinal()];
+        if (bucket == null) {
+            return Verdict.ALLOW;
+        }
+        long now = System.nanoTime();
+        if (bucket.tryAcquire(now)) {
+            return Verdict.ALLOW;
+        }
+        if (!strikes.tryAcquire(now)) {
+            return Verdict.DISCONNECT;
+        }
+        return notices.tryAcquire(now) ? Verdict.WARN : Verdict.THROTTLE;
+    }
+
+    private static void defaultLimit(Message.MessageType type, String limit) {
+        LIMITS[type.ordinal()] = parse(limit);
+    }
+
+    // "rate[:burst]"; null when unlimited
+    private static double[] parse(String limit) {
+        String[] parts = limit.split(":");
+        double rate = Double.parseDouble(parts[0].trim());
+        if (rate <= 0) {
+            return null;
+        }
+        double burst = parts.length > 1 ? Double.parseDouble(parts[1].trim()) : Math.max(1, rate);
+        return new double[] { rate, Math.max(1, burst) };
+    }
+
+    /**
+     * Token bucket kept as a single "theoretical arrival time" (the GCRA form):
+     * each message pushes it forward by one interval, and a message is allowed
+     * while it stays within burst intervals of now. One CAS per decision, no
+     * lock and no refill thread.
+     */
+    static final class TokenBucket {
+        private static final AtomicLongFieldUpdater<TokenBucket> TAT =
+            AtomicLongFieldUpdater.newUpdater(TokenBucket.class, "tat");
+
+        private final long interval;
+        private final long tolerance;
+        private volatile long tat = System.nanoTime();
+
+        TokenBucket(double[] limit) {
+            this.interval = (long) (TimeUnit.SECONDS.toNanos(1) / limit[0]);
+            this.tolerance = (long) (interval * (limit[1] - 1));
+        }
+
+        boolean tryAcquire(long now) {
+            while (true) {
+                long current = tat;
+                long start = current - now > 0 ? current : now;
+                if (start - now > tolerance) {
+                    return false;
+                }
+                if (TAT.compareAndSet(this, current, start + interval)) {
+                    return true;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,101 @@
+import java.util.*;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * Sorted index of all rooms for paging and prefix search.
+ *
+ * Two skip lists hold the same immutable entries, one ordered by name and one
+ * by member count (largest first), so a page or a search walks only the
+ * entries it skips and returns instead of sorting every room. Only the
+ * room-list publisher thread writes, replacing an entry when its count
+ * changes; any thread may read, and a reader racing an update can at worst
+ * miss that one room for that one page.
+ */
+class RoomDirectory {
+    enum Sort { MEMBERS, NAME }
+
+    // Capped so no single request can make the server format a huge reply
+    static final int MAX_PAGE = Math.max(1, Math.min(1000, Integer.getInteger("chat.directoryMaxPage", 100)));
+
+    private static final Comparator<Entry> BY_NAME = Comparator
+        .comparing((Entry entry) -> entry.key)
+        .thenComparing(entry -> entry.roomId);
+    private static final Comparator<Entry> BY_MEMBERS = Comparator
+        .comparingInt((Entry entry) -> -entry.members)
+        .thenComparing(BY_NAME);
+
+    private final ConcurrentSkipListSet<Entry> byName = new ConcurrentSkipListSet<>(BY_NAME);
+    private final ConcurrentSkipListSet<Entry> byMembers = new ConcurrentSkipListSet<>(BY_MEMBERS);
+    // Publisher thread only
+    private final Map<String, Entry> entries = new HashMap<>();
+    private volatile int size;
+
+    void put(String roomId, String name, int members) {
+        Entry entry = new Entry(roomId, name, members);
+        Entry previous = entries.put(roomId, entry);
+        if (previous != null) {
+            byMembers.remove(previous);
+            byName.remove(previous);
+        }
+        byName.add(entry);
+        byMembers.add(entry);
+        size = entries.size();
+    }
+
+    void remove(String roomId) {
+        Entry previous = entries.remove(roomId);
+        if (previous != null) {
+            byMembers.remove(previous);
+            byName.remove(previous);
+        }
+        size = entries.size();
+    }
+
+    int size() {
+        return size;
+    }
+
+    /** Up to limit entries after skipping offset, plus one more if there is a next page. */
+    List<Entry> page(Sort sort, int offset, int limit) {
+        return slice(sort == Sort.NAME ? byName : byMembers, offset, limit, null);
+    }
+
+    /** Rooms whose name starts with prefix, ignoring case, in name order; paged like page(). */
+    List<Entry> search(String prefix, int offset, int limit) {
+        String key = prefix.toLowerCase(Locale.ROOT);
+        return slice(byName.tailSet(new Entry("", key, 0)), offset, limit, key);
+    }
+
+    private static List<Entry> slice(Set<Entry> sorted, int offset, int limit, String prefix) {
+        List<Entry> page = new ArrayList<>(Math.min(limit, MAX_PAGE) + 1);
+        int skipped = 0;
+        for (Entry entry : sorted) {
+            if (prefix != null && !entry.key.startsWith(prefix)) {
+                break;
+            }
+            if (skipped++ < offset) {
+                continue;
+            }
+            page.add(entry);
+            if (page.size() > limit) {
+                break;
+            }
+        }
+        return page;
+    }
+
+    static final class Entry {
+        final String roomId;
+        final String name;
+        // Lower-cased name that both orders and prefix search use
+        final String key;
+        final int members;
+
+        Entry(String roomId, String name, int members) {
+            this.roomId = roomId;
+            this.name = name;
+            this.key = name == null ? "" : name.toLowerCase(Locale.ROOT);
+            this.members = members;
+        }
+    }
+}
@@ -0,0 +1,122 @@
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Fixed-size ring of a room's most recent messages.
+ *
+ * Messages are kept in their already-encoded form, so backfilling a new member
+ * costs no re-encoding. An append claims a sequence number with one atomic
+ * increment and publishes its slot with a CAS; it never takes a lock, so
+ * recording history adds no contention to the broadcast path. The slot array
+ * is allocated on the first message, so rooms nobody talks in cost almost
+ * nothing, and is bounded to chat.historySize messages.
+ */
+class RoomHistory {
+    static final int CAPACITY = Integer.getInteger("chat.historySize", 100);
+    static final int BACKFILL = Integer.getInteger("chat.historyBackfill", CAPACITY);
+
+    @SuppressWarnings("rawtypes")
+    private static final AtomicReferenceFieldUpdater<RoomHistory, AtomicReferenceArray> SLOTS =
+        AtomicReferenceFieldUpdater.newUpdater(RoomHistory.class, AtomicReferenceArray.class, "slots");
+
+    private final int capacity;
+    private volatile AtomicReferenceArray<Entry> slots;
+    private final AtomicLong nextSeq = new AtomicLong();
+
+    RoomHistory() {
+        this(CAPACITY);
+    }
+
+    RoomHistory(int capacity) {
+        this.capacity = capacity;
+    }
+
+    /** Claims the sequence number for a message about to be stored with put(). */
+    long claimSeq() {
+        return nextSeq.getAndIncrement();
+    }
+
+    void put(long seq, MessageCodec.Encoded message) {
+        if (capacity == 0) {
+            return;
+        }
+        AtomicReferenceArray<Entry> slots = slots();
+        Entry entry = new Entry(seq, message);
+        int index = index(seq);
+        while (true) {
+            Entry current = slots.get(index);
+            // A writer that lapped us already stored something newer in this slot
+            if (current != null && current.seq > seq) {
+                break;
+            }
+            if (slots.compareAndSet(index, current, entry)) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Seeds a fresh history with records read back from the message log and
+     * continues numbering after them. Only for rooms nobody can see yet.
+     */
+    void restore(long next, List<MessageLog.Record> records) {
+        if (capacity > 0 && !records.isEmpty()) {
+            AtomicReferenceArray<Entry> slots = slots();
+            for (MessageLog.Record record : records) {
+                slots.set(index(record.seq), new Entry(record.seq, record.message));
+            }
+        }
+        nextSeq.set(next);
+    }
+
+    /** Sequence number the next appended message will get. */
+    long nextSeq() {
+        return nextSeq.get();
+    }
+
+    /** Up to max of the newest messages with a sequence number below end, oldest first. */
+    List<MessageCodec.Encoded> recent(int max, long end) {
+        return range(end - max, end);
+    }
+
+    /** Messages numbered from..end-1 that are still held, oldest first. */
+    List<MessageCodec.Encoded> range(long from, long end) {
+        AtomicReferenceArray<Entry> slots = this.slots;
+        if (slots == null || from >= end) {
+            return Collections.emptyList();
+        }
+        long start = Math.max(0, Math.max(from, end - capacity));
+        List<MessageCodec.Encoded> messages = new ArrayList<>((int) (end - start));
+        for (long seq = start; seq < end; seq++) {
+            Entry entry = slots.get(index(seq));
+            if (entry != null && entry.seq == seq) {
+                messages.add(entry.message);
+            }
+        }
+        return messages;
+    }
+
+    @SuppressWarnings("unchecked")
+    private AtomicReferenceArray<Entry> slots() {
+        AtomicReferenceArray<Entry> current = slots;
+        if (current == null) {
+            SLOTS.compareAndSet(this, null, new AtomicReferenceArray<Entry>(capacity));
+            current = slots;
+        }
+        return current;
+    }
+
+    private int index(long seq) {
+        return (int) (seq % capacity);
+    }
+
+    private static final class Entry {
+        final long seq;
+        final MessageCodec.Encoded message;
+
+        Entry(long seq, MessageCodec.Encoded message) {
+            this.seq = seq;
+            this.message = message;
+        }
+    }
+}
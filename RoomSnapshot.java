@@ -0,0 +1,161 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
+import java.util.stream.IntStream;
+
+/**
+ * Periodic binary snapshots of the room table, so a restarted server comes
+ * back with its rooms before the first client reconnects.
+ *
+ * Writing never blocks the server: a background thread walks the live room
+ * map (which tolerates concurrent changes), encodes it and atomically replaces
+ * the previous file. Rooms are stored in independent chunks whose offsets are
+ * listed in the header, so loading maps the file and decodes every chunk in
+ * parallel.
+ *
+ * File layout (big-endian):
+ *
+ *   [int magic][int version][int chunk count][long offset per chunk]
+ *   chunk: [int room count] then per room
+ *          [int id length][id][int name length][name]
+ *          [int password length, -1 if none][password][long next history seq]
+ */
+class RoomSnapshot {
+    static final long INTERVAL_MS = Long.getLong("chat.snapshotIntervalMs", 10000);
+
+    private static final int MAGIC = 0x43525331;  // "CRS1"
+    private static final int VERSION = 1;
+    private static final int CHUNK_ROOMS = 4096;
+
+    private final Path file;
+
+    RoomSnapshot(Path file) {
+        this.file = file;
+    }
+
+    /** Writes a snapshot every chat.snapshotIntervalMs on a daemon thread. */
+    void start(Collection<Server.Room> rooms) {
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "room-snapshot");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleWithFixedDelay(() -> {
+            try {
+                write(rooms);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }, INTERVAL_MS, INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    synchronized int write(Collection<Server.Room> rooms) throws IOException {
+        List<byte[]> chunks = new ArrayList<>();
+        ByteArrayOutputStream chunk = new ByteArrayOutputStream(64 * 1024);
+        DataOutputStream out = new DataOutputStream(chunk);
+        int inChunk = 0;
+        int total = 0;
+        for (Server.Room room : rooms) {
+            writeString(out, room.roomId);
+            writeString(out, room.roomName);
+            writeString(out, room.password);
+            out.writeLong(room.history.nextSeq());
+            total++;
+            if (++inChunk == CHUNK_ROOMS) {
+                chunks.add(finishChunk(chunk, inChunk));
+                inChunk = 0;
+            }
+        }
+        if (inChunk > 0) {
+            chunks.add(finishChunk(chunk, inChunk));
+        }
+
+        ByteBuffer[] buffers = new ByteBuffer[chunks.size() + 1];
+        ByteBuffer header = ByteBuffer.allocate(12 + 8 * chunks.size());
+        header.putInt(MAGIC).putInt(VERSION).putInt(chunks.size());
+        long offset = header.capacity();
+        for (int i = 0; i < chunks.size(); i++) {
+            header.putLong(offset);
+            offset += chunks.get(i).length;
+            buffers[i + 1] = ByteBuffer.wrap(chunks.get(i));
+        }
+        header.flip();
+        buffers[0] = header;
+
+        // Written beside the old snapshot and moved over it, so a crash mid-write
+        // leaves the previous snapshot intact
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (buffers[buffers.length - 1].hasRemaining()) {
+                channel.write(buffers);
+            }
+            channel.force(true);
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return total;
+    }
+
+    /**
+     * Decodes every room in the snapshot, chunks in parallel, and hands each
+     * one to sink (which must be thread-safe). Returns the number of rooms, or
+     * 0 if there is no snapshot yet.
+     */
+    int load(Consumer<Server.Room> sink) throws IOException {
+        if (!Files.exists(file)) {
+            return 0;
+        }
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        if (buffer.remaining() < 12 || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+            throw new StreamCorruptedException("Not a room snapshot: " + file);
+        }
+        int chunkCount = buffer.getInt(8);
+        return IntStream.range(0, chunkCount).parallel().map(i -> {
+            ByteBuffer chunk = buffer.duplicate();
+            chunk.position((int) buffer.getLong(12 + 8 * i));
+            int count = chunk.getInt();
+            for (int r = 0; r < count; r++) {
+                String roomId = readString(chunk);
+                String roomName = readString(chunk);
+                String password = readString(chunk);
+                sink.accept(Server.Room.load(roomId, roomName, password, chunk.getLong()));
+            }
+            return count;
+        }).sum();
+    }
+
+    private static byte[] finishChunk(ByteArrayOutputStream chunk, int count) {
+        byte[] body = chunk.toByteArray();
+        chunk.reset();
+        return ByteBuffer.allocate(4 + body.length).putInt(count).put(body).array();
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer in) {
+        int length = in.getInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
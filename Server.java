@@ -1,240 +1,1283 @@
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.security.SecureRandom;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class Server {
-    private static final int PORT = 5555;
-    private static ConcurrentHashMap<String, ClientHandler> clients = new ConcurrentHashMap<>();
-    private static ConcurrentHashMap<String, Room> rooms = new ConcurrentHashMap<>();
+    private static final int PORT = Integer.getInteger("chat.port", 5555);
+    private static final String MODE = System.getProperty("chat.mode", "threads");
+    private static final int EVENT_LOOPS = Integer.getInteger("chat.loops",
+        Runtime.getRuntime().availableProcessors());
+    private static ThreadFactory handlerThreads = Thread::new;
+    private static MessageLog messageLog;
+    private static Cluster cluster;
+    static ConcurrentHashMap<String, ClientHandler> clients = new ConcurrentHashMap<>();
+    static ConcurrentHashMap<String, Room> rooms = new ConcurrentHashMap<>();
+    // Resumable sessions by token, each mapped to the connection that last held it
+    private static ConcurrentHashMap<String, ClientHandler> sessions = new ConcurrentHashMap<>();
+    static final RoomListPublisher roomListUpdates = new RoomListPublisher();
+    private static final TimingWheel timers = new TimingWheel("timers", 
+        Long.getLong("chat.timerTickMs", 100), 512);
     
     static class Room {
+        private static final ClientHandler[] NO_MEMBERS = new ClientHandler[0];
+        private static final AtomicReferenceFieldUpdater<Room, ClientHandler[]> MEMBERS =
+            AtomicReferenceFieldUpdater.newUpdater(Room.class, ClientHandler[].class, "members");
+        
         String roomId;
+        // UTF-8 of roomId, written into every relayed chat frame
+        final byte[] idBytes;
         String roomName;
         String password;
-        Set<String> members;
+        // Copy-on-write: a broadcast iterates one immutable snapshot, so it sees
+        // each join or leave entirely or not at all
+        volatile ClientHandler[] members = NO_MEMBERS;
+        RoomHistory history;
+        // Members connected to other cluster nodes, as they last reported
+        volatile int remoteMembers;
+        final LongAdder messages = new LongAdder();
+        volatile long messageRate;
+        long messagesAtLastTick;
+        // Orders this node's cluster subscribe and unsubscribe for the room
+        final ReentrantLock subscription = new ReentrantLock();
         
-        public Room(String roomId, String roomName, String password) {
+        private Room(String roomId, String roomName, String password, long nextSeq, 
+                List<MessageLog.Record> logged) {
             this.roomId = roomId;
+            this.idBytes = MessageCodec.utf8(roomId);
             this.roomName = roomName;
             this.password = password;
-            this.members = ConcurrentHashMap.newKeySet();
+            this.history = new RoomHistory();
+            history.restore(nextSeq, logged);
+        }
+        
+        // Reads back what the message log holds for the room, so build a room only
+        // once its ID is known to be free and never under the rooms map's lock.
+        // nextSeq is where the history numbering stood when it was snapshotted
+        static Room load(String roomId, String roomName, String password, long nextSeq) {
+            List<MessageLog.Record> logged = Collections.emptyList();
+            if (messageLog != null) {
+                try {
+                    nextSeq = Math.max(nextSeq, messageLog.nextSeq(roomId));
+                    logged = messageLog.read(roomId, 0, RoomHistory.CAPACITY);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            return new Room(roomId, roomName, password, nextSeq, logged);
+        }
+        
+        void addMember(ClientHandler member) {
+            ClientHandler[] current;
+            ClientHandler[] updated;
+            do {
+                current = members;
+                for (ClientHandler existing : current) {
+                    if (existing == member) {
+                        return;
+                    }
+                }
+                updated = Arrays.copyOf(current, current.length + 1);
+                updated[current.length] = member;
+            } while (!MEMBERS.compareAndSet(this, current, updated));
+        }
+        
+        void removeMember(ClientHandler member) {
+            ClientHandler[] current;
+            ClientHandler[] updated;
+            do {
+                current = members;
+                int index = -1;
+                for (int i = 0; i < current.length; i++) {
+                    if (current[i] == member) {
+                        index = i;
+                        break;
+                    }
+                }
+                if (index < 0) {
+                    return;
+                }
+                updated = current.length == 1 ? NO_MEMBERS : new ClientHandler[current.length - 1];
+                System.arraycopy(current, 0, updated, 0, index);
+                System.arraycopy(current, index + 1, updated, index, current.length - index - 1);
+            } while (!MEMBERS.compareAndSet(this, current, updated));
+        }
+        
+        // Swaps a resumed connection in for its old one without changing the member count
+        void replaceMember(ClientHandler previous, ClientHandler member) {
+            ClientHandler[] current;
+            ClientHandler[] updated;
+            do {
+                current = members;
+                int index = Arrays.asList(current).indexOf(previous);
+                if (index < 0) {
+                    addMember(member);
+                    return;
+                }
+                updated = current.clone();
+                updated[index] = member;
+            } while (!MEMBERS.compareAndSet(this, current, updated));
+        }
+        
+        // Everyone in the room, on this node or any other
+        int memberCount() {
+            return members.length + remoteMembers;
         }
     }
     
     public static void main(String[] args) {
         System.out.println("=== Chat Server with Rooms Started ===");
         System.out.println("Listening on port: " + PORT);
-        System.out.println("Waiting for clients...\n");
+        if ("nio".equals(MODE)) {
+            System.out.println("Mode: nio (" + EVENT_LOOPS + " event loops)");
+        } else if ("virtual".equals(MODE)) {
+            handlerThreads = virtualThreadFactory();
+        }
         
-        try (ServerSocket serverSocket = new ServerSocket(PORT)) {
-            while (true) {
-                Socket clientSocket = serverSocket.accept();
-                System.out.println("New client connected: " + clientSocket.getInetAddress());
-                ClientHandler handler = new ClientHandler(clientSocket);
-                new Thread(handler).start();
+        try {
+            String logDir = System.getProperty("chat.logDir");
+            if (logDir != null) {
+                messageLog = MessageLog.open(Paths.get(logDir));
+                Runtime.getRuntime().addShutdownHook(new Thread(messageLog::close));
+                System.out.println("Message log: " + logDir + " ("
+                    + messageLog.recoveredRecords() + " messages recovered)");
+            }
+            String clusterNodes = System.getProperty("chat.cluster");
+            if (clusterNodes != null) {
+                cluster = new Cluster(System.getProperty("chat.nodeId"), clusterNodes);
+                System.out.println("Cluster: node " + cluster.self + " of " + cluster.size());
+            }
+            String snapshotFile = System.getProperty("chat.snapshotFile");
+            if (snapshotFile != null) {
+                restoreRooms(new RoomSnapshot(Paths.get(snapshotFile)));
+            }
+            Metrics.startRates(rooms.values());
+            if (Metrics.HTTP_PORT > 0) {
+                Metrics.serveHttp(Metrics.HTTP_PORT, () -> Metrics.report(rooms.values(), clients.values()));
+                System.out.println("Metrics: http://localhost:" + Metrics.HTTP_PORT + "/metrics");
+            }
+            System.out.println("Waiting for clients...\n");
+            
+            if ("nio".equals(MODE)) {
+                EventLoop.serve(PORT, EVENT_LOOPS);
+                return;
+            }
+            // A channel-backed socket, even in blocking mode, lets writers hand it a ByteBuffer directly
+            try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+                serverChannel.bind(new InetSocketAddress(PORT));
+                while (true) {
+                    Socket clientSocket = serverChannel.accept().socket();
+                    Metrics.connectionsAccepted.increment();
+                    ServerLog.info("accept", null, null, 0, clientSocket.getInetAddress());
+                    startHandler(new ClientHandler(clientSocket));
+                }
             }
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
     
+    // Rooms are back before the first client is accepted; snapshots then run in
+    // the background and once more at shutdown
+    private static void restoreRooms(RoomSnapshot snapshot) throws IOException {
+        long start = System.nanoTime();
+        int restored = snapshot.load(room -> rooms.put(room.roomId, room));
+        for (String roomId : rooms.keySet()) {
+            roomListUpdates.changed(roomId);
+        }
+        System.out.println("Snapshot: " + restored + " rooms restored in "
+            + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+        snapshot.start(rooms.values());
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                snapshot.write(rooms.values());
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }));
+    }
+    
+    // Only on the node that owns the room: numbers, records and delivers a chat
+    // message, here and on every node with members in the room. Only sender and
+    // text go out; the author's request ID and anything else it set stay behind
+    static void publish(Room room, Message message, ClientHandler exclude) throws IOException {
+        Message text = new Message(Message.MessageType.TEXT, message.getSender(), message.getContent(), room.roomId);
+        long seq = room.history.claimSeq();
+        text.setSeq(seq);
+        deliver(room, seq, new MessageCodec.Encoded(text), exclude);
+    }
+    
+    // publish() for chat text still in the bytes its author sent; nothing is decoded
+    static MessageCodec.Encoded publishText(Room room, byte[] sender, byte[] buf, int contentOffset, 
+            int contentLength, ClientHandler exclude) throws IOException {
+        long seq = room.history.claimSeq();
+        MessageCodec.Encoded encoded = MessageCodec.Encoded.ofBinary(
+            MessageCodec.textFrame(sender, room.idBytes, buf, contentOffset, contentLength, seq));
+        deliver(room, seq, encoded, exclude);
+        return encoded;
+    }
+    
+    private static void deliver(Room room, long seq, MessageCodec.Encoded encoded, ClientHandler exclude) 
+            throws IOException {
+        room.history.put(seq, encoded);
+        if (messageLog != null) {
+            messageLog.append(room.roomId, seq, encoded);
+        }
+        ClientHandler.broadcastToRoom(room, encoded, exclude);
+        if (cluster != null) {
+            cluster.relay(room, encoded, null);
+        }
+        room.messages.increment();
+    }
+    
+    // Only on the node that owns the room; false if the ID is taken
+    static boolean createRoom(Message request) {
+        String roomId = request.getRoomId();
+        String password = request.getPassword();
+        if (rooms.containsKey(roomId)) {
+            return false;
+        }
+        // Cluster peers create rooms too, so two creates of one ID can race here
+        if (rooms.putIfAbsent(roomId, Room.load(roomId, request.getRoomName(), password, 0)) != null) {
+            return false;
+        }
+        ServerLog.info("room_created", request.getSender(), roomId, 0, 
+            password != null && !password.isEmpty() ? "with password" : null);
+        roomListUpdates.changed(roomId);
+        return true;
+    }
+    
+    // A room owned by another cluster node. Peers gossip every room they own over
+    // and over, so the room (which reads its message log) is only built when new
+    static void defineRoom(String roomId, String roomName, String password) {
+        if (!rooms.containsKey(roomId)
+                && rooms.putIfAbsent(roomId, Room.load(roomId, roomName, password, 0)) == null) {
+            roomListUpdates.changed(roomId);
+        }
+    }
+    
+    static void startHandler(ClientHandler handler) {
+        handlerThreads.newThread(handler).start();
+    }
+    
+    private static ThreadFactory virtualThreadFactory() {
+        try {
+            // Thread.ofVirtual().factory(), looked up reflectively so the server still builds on JDK 17
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            ThreadFactory factory = (ThreadFactory) Class.forName("java.lang.Thread$Builder")
+                .getMethod("factory").invoke(builder);
+            System.out.println("Mode: virtual threads");
+            return factory;
+        } catch (ReflectiveOperationException e) {
+            System.out.println("Virtual threads need JDK 21+, using platform threads");
+            return Thread::new;
+        }
+    }
+    
+    /**
+     * Coalesces room-list updates. Joins, leaves and new rooms only mark a room
+     * dirty; at most once per window the publisher compares those rooms with
+     * what it last published and, if anything actually changed, pushes one
+     * versioned delta to clients that asked for deltas and one full list to
+     * the rest, and updates the directory that paging clients query instead.
+     * All published state lives on the publisher's own thread.
+     */
+    static class RoomListPublisher {
+        private static final long WINDOW_MS = Long.getLong("chat.roomListWindowMs", 100);
+        
+        private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "room-list");
+            thread.setDaemon(true);
+            return thread;
+        });
+        private final Set<String> dirty = ConcurrentHashMap.newKeySet();
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        private final Map<String, String[]> published = new LinkedHashMap<>();
+        private long version;
+        final RoomDirectory directory = new RoomDirectory();
+        
+        void changed(String roomId) {
+            if (cluster != null) {
+                cluster.changed(roomId);
+            }
+            dirty.add(roomId);
+            if (scheduled.compareAndSet(false, true)) {
+                executor.schedule(this::publish, WINDOW_MS, TimeUnit.MILLISECONDS);
+            }
+        }
+        
+        // Runs on the publisher thread so the snapshot and later deltas are in order
+        void sendSnapshot(ClientHandler client, String requestId) {
+            sendSnapshot(client, -1, requestId);
+        }
+        
+        // Skipped when the client already has this version, e.g. after a short reconnect
+        void sendSnapshot(ClientHandler client, long knownVersion, String requestId) {
+            executor.execute(() -> {
+                if (knownVersion == version) {
+                    return;
+                }
+                try {
+                    Message snapshot = new Message(Message.MessageType.ROOM_LIST, 
+                        "Server", "v=" + version + ";" + fullList());
+                    snapshot.setRequestId(requestId);
+                    client.send(new MessageCodec.Encoded(snapshot));
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            });
+        }
+        
+        private void publish() {
+            scheduled.set(false);
+            StringBuilder delta = new StringBuilder();
+            for (Iterator<String> it = dirty.iterator(); it.hasNext(); ) {
+                String roomId = it.next();
+                // Removed before reading the room, so a change from here on marks it dirty again
+                it.remove();
+                Room room = rooms.get(roomId);
+                String[] before = published.get(roomId);
+                if (room == null) {
+                    if (before != null) {
+                        published.remove(roomId);
+                        directory.remove(roomId);
+                        delta.append('-').append(roomId).append(';');
+                    }
+                    continue;
+                }
+                int members = room.memberCount();
+                String count = String.valueOf(members);
+                if (before == null) {
+                    published.put(roomId, new String[] { room.roomName, count });
+                    directory.put(roomId, room.roomName, members);
+                    delta.append('+').append(roomId).append('|')
+                         .append(room.roomName).append('|').append(count).append(';');
+                } else if (!before[1].equals(count)) {
+                    before[1] = count;
+                    directory.put(roomId, room.roomName, members);
+                    delta.append('~').append(roomId).append('|').append(count).append(';');
+                }
+            }
+            if (delta.length() == 0) {
+                return;
+            }
+            
+            version++;
+            MessageCodec.Encoded deltaMsg = new MessageCodec.Encoded(new Message(
+                Message.MessageType.ROOM_LIST_DELTA, "Server", "v=" + version + ";" + delta));
+            MessageCodec.Encoded fullMsg = null;
+            for (ClientHandler client : clients.values()) {
+                try {
+                    if (client.wantsDirectory) {
+                        continue;
+                    } else if (client.wantsDeltas) {
+                        client.send(deltaMsg);
+                    } else {
+                        if (fullMsg == null) {
+                            fullMsg = new MessageCodec.Encoded(new Message(
+                                Message.MessageType.ROOM_LIST, "Server", fullList()));
+                        }
+                        client.send(fullMsg);
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        
+        private String fullList() {
+            StringBuilder list = new StringBuilder();
+            for (Map.Entry<String, String[]> room : published.entrySet()) {
+                list.append(room.getKey()).append("|")
+                    .append(room.getValue()[0]).append("|")
+                    .append(room.getValue()[1]).append(";");
+            }
+            return list.toString();
+        }
+    }
+    
+    /**
+     * Fan-out for rooms of at least chat.parallelFanOut members: the member
+     * array is split into chunks of chat.fanOutChunk that a work-stealing pool
+     * queues in parallel. Smaller rooms are delivered inline by the sender.
+     */
+    static class FanOut extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        static final int THRESHOLD = Integer.getInteger("chat.parallelFanOut", 2048);
+        static final int CHUNK = Math.max(1, Integer.getInteger("chat.fanOutChunk", 512));
+        static final ForkJoinPool POOL = new ForkJoinPool(Integer.getInteger("chat.fanOutThreads",
+            Runtime.getRuntime().availableProcessors()));
+        
+        private final ClientHandler[] members;
+        private final int from;
+        private final int to;
+        private final MessageCodec.Encoded encoded;
+        private final ClientHandler exclude;
+        
+        FanOut(ClientHandler[] members, int from, int to, MessageCodec.Encoded encoded, ClientHandler exclude) {
+            this.members = members;
+            this.from = from;
+            this.to = to;
+            this.encoded = encoded;
+            this.exclude = exclude;
+        }
+        
+        @Override
+        protected void compute() {
+            if (to - from <= CHUNK) {
+                deliver(members, from, to, encoded, exclude);
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new FanOut(members, from, middle, encoded, exclude),
+                new FanOut(members, middle, to, encoded, exclude));
+        }
+        
+        static void deliver(ClientHandler[] members, int from, int to, 
+                MessageCodec.Encoded encoded, ClientHandler exclude) {
+            for (int i = from; i < to; i++) {
+                ClientHandler member = members[i];
+                if (member != exclude) {
+                    try {
+                        member.send(encoded);
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+        }
+    }
+    
     static class ClientHandler implements Runnable {
+        // Liveness is checked every HEARTBEAT_MS. A client that negotiated
+        // "ping" gets a PING after PING_INTERVAL_MS of silence and is dropped
+        // after IDLE_TIMEOUT_MS; anyone whose pending output makes no progress
+        // for WRITE_STALL_MS is dropped too
+        static final long HEARTBEAT_MS = Long.getLong("chat.heartbeatMs", 5000);
+        static final long PING_INTERVAL_MS = Long.getLong("chat.pingIntervalMs", 15000);
+        static final long IDLE_TIMEOUT_MS = Long.getLong("chat.idleTimeoutMs", 45000);
+        static final long WRITE_STALL_MS = Long.getLong("chat.writeStallMs", 30000);
+        // How long a dropped connection that negotiated "resume" keeps its room
+        // membership for a RESUME to take over
+        static final long RESUME_GRACE_MS = Long.getLong("chat.resumeGraceMs", 30000);
+        private static final SecureRandom tokens = new SecureRandom();
+        
         private Socket socket;
-        private ObjectOutputStream out;
+        private EventLoop.Connection connection;
+        private byte[] prefix;
         private ObjectInputStream in;
-        private String username;
-        private String currentRoom;
+        private WritableByteChannel out;
+        private MessageCodec.Format format = MessageCodec.Format.SERIALIZED;
+        final OutboundQueue outbound = new OutboundQueue();
+        private final RateLimiter limiter = new RateLimiter();
+        private Thread writer;
+        private final AtomicBoolean disconnecting = new AtomicBoolean();
+        private volatile String username;
+        // Where TEXTs without a room ID go: the room joined last
+        private volatile String currentRoom;
+        // Every room this connection is in, so leaving them all costs one step per room
+        private final Map<String, Room> joined = new ConcurrentHashMap<>();
+        private volatile boolean wantsRooms;
+        // Reused for every binary TEXT read; the cached room saves decoding its ID each time
+        private final MessageCodec.TextFrame textFrame = new MessageCodec.TextFrame();
+        private Room lastTextRoom;
+        private volatile byte[] usernameBytes;
+        private volatile boolean wantsDeltas;
+        // Pages through the directory instead of receiving the whole room list
+        private volatile boolean wantsDirectory;
+        private volatile boolean wantsPing;
+        private volatile String sessionToken;
+        // Cleared by whoever ends the session or takes it over, exactly once
+        private final AtomicBoolean sessionLive = new AtomicBoolean(true);
+        private volatile boolean ending;
+        private volatile boolean closed;
+        private volatile long lastRead = System.nanoTime();
+        // Bumped by whoever writes to the socket, after every write that made progress
+        volatile long writeProgress;
+        private volatile boolean writing;
+        private volatile TimingWheel.Timeout heartbeat;
+        // Only touched by the timer thread
+        private long progressAtLastCheck;
+        private long stalledSince;
         
         public ClientHandler(Socket socket) {
+            this(socket, null);
+        }
+        
+        // prefix holds bytes an event loop already read before handing the socket over
+        ClientHandler(Socket socket, byte[] prefix) {
             this.socket = socket;
+            this.prefix = prefix;
+        }
+        
+        ClientHandler(EventLoop.Connection connection) {
+            this.connection = connection;
+            heartbeat = timers.schedule(this::checkLiveness, HEARTBEAT_MS);
+        }
+        
+        // The event loop passed the socket on to a new handler; this one never ran
+        void detach() {
+            closed = true;
+            heartbeat.cancel();
         }
         
         @Override
         public void run() {
+            heartbeat = timers.schedule(this::checkLiveness, HEARTBEAT_MS);
             try {
-                out = new ObjectOutputStream(socket.getOutputStream());
-                in = new ObjectInputStream(socket.getInputStream());
+                socket.setKeepAlive(true);
+                InputStream rawIn = socket.getInputStream();
+                if (prefix != null) {
+                    rawIn = new SequenceInputStream(new ByteArrayInputStream(prefix), rawIn);
+                }
+                PushbackInputStream peek = new PushbackInputStream(rawIn, 2);
+                int b0 = peek.read();
+                int b1 = peek.read();
+                if (b1 < 0) {
+                    return;
+                }
+                peek.unread(b1);
+                peek.unread(b0);
+                
+                out = socket.getChannel() != null 
+                    ? socket.getChannel() : Channels.newChannel(socket.getOutputStream());
+                boolean legacy = MessageCodec.isLegacyStream(b0, b1);
+                if (legacy) {
+                    // Legacy clients get a stream header and then pre-encoded STREAM
+                    // objects, so broadcasts can share their bytes too
+                    outbound.offer(MessageCodec.streamHeader());
+                    format = MessageCodec.Format.STREAM;
+                }
+                writer = handlerThreads.newThread(this::writeLoop);
+                writer.start();
+                
+                if (legacy) {
+                    in = new ObjectInputStream(peek);
+                    
+                    while (true) {
+                        Message message = (Message) in.readObject();
+                        handleMessage(message);
+                    }
+                }
                 
+                DataInputStream frameIn = new DataInputStream(new BufferedInputStream(peek));
+                // One buffer for every frame, grown only for unusually large ones
+                byte[] frame = new byte[8192];
                 while (true) {
-                    Message message = (Message) in.readObject();
-                    handleMessage(message);
+                    int len = frameIn.readInt();
+                    MessageCodec.checkLength(len);
+                    if (len > frame.length) {
+                        frame = new byte[len];
+                    }
+                    frameIn.readFully(frame, 0, len);
+                    handleFrame(frame, 0, len);
                 }
             } catch (Exception e) {
-                System.out.println("Client disconnected: " + username);
+                // The client went away; cleanup() logs the disconnect
             } finally {
                 cleanup();
             }
         }
         
-        private void handleMessage(Message message) throws IOException {
+        /**
+         * Entry point for framed clients. A plain binary TEXT for a room this node
+         * owns is relayed straight from the bytes read; anything else is decoded
+         * first. buf is reused for the next frame as soon as this returns.
+         */
+        void handleFrame(byte[] buf, int off, int len) throws IOException {
+            if (!textFrame.parse(buf, off, len) || !relayText(buf)) {
+                handleMessage(MessageCodec.decode(buf, off, len));
+            }
+        }
+        
+        // False when the TEXT needs the full treatment: no such room here, or another node owns it
+        private boolean relayText(byte[] buf) throws IOException {
+            Room room = textRoom(buf);
+            if (room == null || (cluster != null && !cluster.owns(room.roomId))) {
+                return false;
+            }
+            if (!admit(Message.MessageType.TEXT, null)) {
+                return true;
+            }
+            long received = System.nanoTime();
+            byte[] sender = usernameBytes;
+            if (sender == null) {
+                usernameBytes = sender = MessageCodec.utf8(username);
+            }
+            MessageCodec.Encoded encoded = publishText(room, sender, 
+                buf, textFrame.contentOffset, textFrame.contentLength, this);
+            ServerLog.text(username, room.roomId, encoded);
+            Metrics.fanOutNanos.record(System.nanoTime() - received);
+            return true;
+        }
+        
+        // Picks the room as the TEXT case below does, decoding the room ID only when it changes
+        private Room textRoom(byte[] buf) {
+            if (!wantsRooms || textFrame.roomIdOffset < 0) {
+                String target = currentRoom;
+                return target == null ? null : joined.get(target);
+            }
+            Room room = lastTextRoom;
+            if (room == null || !textFrame.roomIdEquals(buf, room.idBytes)) {
+                room = joined.get(new String(buf, textFrame.roomIdOffset, textFrame.roomIdLength, 
+                    StandardCharsets.UTF_8));
+                lastTextRoom = room;
+            }
+            return room != null && joined.get(room.roomId) == room ? room : null;
+        }
+        
+        void handleMessage(Message message) throws IOException {
+            if (admit(message.getType(), message)) {
+                dispatch(message);
+            }
+        }
+        
+        // Counts the message as activity and applies the rate limit; message is null on the TEXT fast path
+        private boolean admit(Message.MessageType type, Message message) throws IOException {
+            Metrics.messagesIn.increment();
+            lastRead = System.nanoTime();
+            switch (limiter.check(type)) {
+                case ALLOW:
+                    break;
+                case WARN:
+                    sendMessage(new Message(Message.MessageType.NOTIFICATION, 
+                        "Server", "You are sending too fast, some messages were dropped", null));
+                    return throttled(message);
+                case THROTTLE:
+                    return throttled(message);
+                case DISCONNECT:
+                    if (disconnect()) {
+                        Metrics.floodDisconnects.increment();
+                        ServerLog.warn("flood", username, currentRoom, 0, type);
+                    }
+                    return false;
+            }
+            return true;
+        }
+        
+        private boolean throttled(Message message) throws IOException {
+            Metrics.throttled.increment();
+            // A pipelining client must hear about every request it loses
+            if (message != null && message.getRequestId() != null) {
+                reject(message, "throttled", new Message(Message.MessageType.NOTIFICATION, 
+                    "Server", "Too many requests", message.getRoomId()));
+            }
+            return false;
+        }
+        
+        private void dispatch(Message message) throws IOException {
             switch (message.getType()) {
                 case CONNECT:
+                    // Once is enough; a repeat would re-register the user and rebuild the room list
+                    if (username != null) {
+                        break;
+                    }
                     username = message.getSender();
                     clients.put(username, this);
-                    System.out.println(username + " connected");
-                    sendRoomList();
+                    ServerLog.info("connect", username, null, 0, null);
+                    negotiate(message.getContent());
+                    // Paging clients ask for what they show; everyone else gets every room
+                    if (!wantsDirectory) {
+                        sendRoomList(null);
+                    }
                     break;
                     
-                case CREATE_ROOM:
-                    String roomId = message.getRoomId();
-                    String roomName = message.getRoomName();
-                    String password = message.getPassword();
+                case RESUME:
+                    if (username == null) {
+                        resume(message);
+                    }
+                    break;
                     
-                    if (rooms.containsKey(roomId)) {
-                        sendMessage(new Message(Message.MessageType.NOTIFICATION, 
-                            "Server", "Room ID already exists!", null));
+                case CREATE_ROOM:
+                    if (cluster != null && !cluster.owns(message.getRoomId())) {
+                        // The owning node decides; its answer comes back through roomCreated()
+                        if (!cluster.create(username, message)) {
+                            reject(message, "unavailable", new Message(Message.MessageType.NOTIFICATION, 
+                                "Server", "Room server unavailable, try again later", null));
+                        }
                     } else {
-                        Room newRoom = new Room(roomId, roomName, password);
-                        rooms.put(roomId, newRoom);
-                        System.out.println("Room created: " + roomName + " (" + roomId + ")" + 
-                            (password != null && !password.isEmpty() ? " with password" : ""));
-                        
-                        sendMessage(new Message(Message.MessageType.NOTIFICATION, 
-                            "Server", "Room '" + roomName + "' created successfully!", roomId));
-                        
-                        sendRoomList();
+                        roomCreated(message, createRoom(message));
                     }
                     break;
                     
                 case JOIN_ROOM:
-                    roomId = message.getRoomId();
+                    String roomId = message.getRoomId();
                     Room room = rooms.get(roomId);
                     
                     if (room != null) {
                         String providedPassword = message.getPassword();
                         
                         if (room.password == null || room.password.isEmpty()) {
-                            joinRoom(room, roomId);
+                            joinRoom(room, roomId, message);
                         } else if (providedPassword != null && providedPassword.equals(room.password)) {
-                            joinRoom(room, roomId);
+                            joinRoom(room, roomId, message);
                         } else {
-                            sendMessage(new Message(Message.MessageType.PASSWORD_INCORRECT, 
+                            reject(message, "wrong_password", new Message(Message.MessageType.PASSWORD_INCORRECT, 
                                 "Server", "Incorrect password!", roomId));
                         }
                     } else {
-                        sendMessage(new Message(Message.MessageType.NOTIFICATION, 
+                        reject(message, "no_such_room", new Message(Message.MessageType.NOTIFICATION, 
                             "Server", "Room does not exist!", null));
                     }
                     break;
                     
                 case TEXT:
-                    if (currentRoom != null) {
-                        System.out.println("[" + currentRoom + "] " + username + ": " + message.getContent());
-                        broadcastToRoom(currentRoom, message, username);
+                    long received = System.nanoTime();
+                    // Older clients only ever talk to the room they are in
+                    String target = wantsRooms && message.getRoomId() != null ? message.getRoomId() : currentRoom;
+                    Room textRoom = target == null ? null : joined.get(target);
+                    if (textRoom != null) {
+                        ServerLog.text(username, target, message.getContent());
+                        boolean sent = true;
+                        if (cluster == null || cluster.owns(textRoom.roomId)) {
+                            publish(textRoom, message, this);
+                            Metrics.fanOutNanos.record(System.nanoTime() - received);
+                        } else if (!(sent = cluster.publish(textRoom, message))) {
+                            reject(message, "unavailable", new Message(Message.MessageType.NOTIFICATION, 
+                                "Server", "Message not delivered, room server unavailable", target));
+                        }
+                        // Only a pipelining client asked to hear back; older ones never did
+                        if (sent && message.getRequestId() != null) {
+                            ack(message, new Message(Message.MessageType.NOTIFICATION, "Server", "Sent", target));
+                        }
                     } else {
-                        sendMessage(new Message(Message.MessageType.NOTIFICATION, 
-                            "Server", "You must join a room first!", null));
+                        reject(message, "not_in_room", new Message(Message.MessageType.NOTIFICATION, 
+                            "Server", "You must join a room first!", target));
                     }
                     break;
                     
                 case LEAVE_ROOM:
-                    leaveCurrentRoom();
+                    String left = wantsRooms && message.getRoomId() != null ? message.getRoomId() : currentRoom;
+                    if (left != null) {
+                        leaveRoom(left);
+                    }
+                    // Older clients never got a reply to this
+                    if (message.getRequestId() != null) {
+                        ack(message, new Message(Message.MessageType.NOTIFICATION, "Server", "Left room", left));
+                    }
                     break;
                     
                 case ROOM_LIST:
-                    sendRoomList();
+                    sendRoomList(message.getRequestId());
+                    break;
+                    
+                case ROOM_PAGE:
+                case ROOM_SEARCH:
+                    sendDirectory(message);
+                    break;
+                    
+                case STATS:
+                    Message stats = new Message(Message.MessageType.STATS, 
+                        "Server", Metrics.report(rooms.values(), clients.values()));
+                    stats.setRequestId(message.getRequestId());
+                    sendMessage(stats);
+                    break;
+                    
+                case PING:
+                    sendMessage(new Message(Message.MessageType.PONG, "Server", message.getContent()));
+                    break;
+                    
+                case PONG:
+                    // Reading it already counted as activity
                     break;
                     
                 case DISCONNECT:
+                    ending = true;
                     cleanup();
                     break;
             }
         }
         
-        private void joinRoom(Room room, String roomId) throws IOException {
-            if (currentRoom != null) {
-                leaveCurrentRoom();
+        /**
+         * Takes over a session that a dropped connection left behind: same user,
+         * same room membership, no join or leave notices and no room-list change.
+         * TEXTs the client missed are replayed from room history after the seq it
+         * last saw. An unknown or expired token carries on as a fresh CONNECT.
+         */
+        private void resume(Message message) throws IOException {
+            String options = message.getContent();
+            String token = option(options, "session");
+            ClientHandler previous = token == null ? null : sessions.get(token);
+            if (previous == null || !previous.username.equals(message.getSender())
+                    || !previous.sessionLive.compareAndSet(true, false)) {
+                username = message.getSender();
+                clients.put(username, this);
+                ServerLog.info("connect", username, null, 0, "session expired");
+                negotiate(options);
+                sendMessage(new Message(Message.MessageType.RESUME, "Server", "expired"));
+                if (!wantsDirectory) {
+                    sendRoomList(null);
+                }
+                return;
+            }
+            // The old connection may not have noticed it is gone yet
+            previous.disconnect();
+            username = previous.username;
+            sessionToken = token;
+            sessions.put(token, this);
+            clients.put(username, this);
+            negotiate(options);
+            
+            List<MessageCodec.Encoded> missed = new ArrayList<>();
+            Map<Room, Long> remoteFrom = new HashMap<>();
+            long lost = 0;
+            List<String> badSeqs = new ArrayList<>();
+            for (Room room : previous.joined.values()) {
+                joined.put(room.roomId, room);
+                room.replaceMember(previous, this);
+                // The seq last seen per room, or the older single-room form
+                String seen = option(options, "seq@" + room.roomId);
+                if (seen == null && room.roomId.equals(option(options, "room"))) {
+                    seen = option(options, "seq");
+                }
+                long seq = seen == null ? -1 : number(seen);
+                if (seen != null && seq < 0) {
+                    badSeqs.add(room.roomId);
+                }
+                // Without a usable seq the client gets all the history still held
+                long from = seq < 0 ? 0 : Math.min(seq, Long.MAX_VALUE - 1) + 1;
+                if (cluster != null && !cluster.owns(room.roomId)) {
+                    remoteFrom.put(room, from);
+                } else {
+                    // Read after the swap, as in joinRoom()
+                    long historyEnd = room.history.nextSeq();
+                    List<MessageCodec.Encoded> gap = room.history.range(from, historyEnd);
+                    missed.addAll(gap);
+                    if (seq >= 0) {
+                        lost += Math.max(0, historyEnd - from - gap.size());
+                    }
+                }
+            }
+            currentRoom = previous.currentRoom;
+            ServerLog.info("resume", username, currentRoom, missed.size(), lost > 0 ? lost + " lost" : null);
+            
+            // Owners of rooms on other nodes replay their gaps themselves, after this reply
+            sendMessage(new Message(Message.MessageType.RESUME, "Server", 
+                "resumed;replayed=" + missed.size() + ";lost=" + lost, currentRoom));
+            for (Map.Entry<Room, Long> remote : remoteFrom.entrySet()) {
+                cluster.joined(remote.getKey(), username, remote.getValue());
+            }
+            for (MessageCodec.Encoded past : missed) {
+                send(past);
+            }
+            for (String roomId : badSeqs) {
+                Message bad = new Message(Message.MessageType.ERROR, "Server", 
+                    "bad_request: Unreadable seq, replayed all recent history", roomId);
+                bad.setRequestId(message.getRequestId());
+                sendMessage(bad);
+            }
+            if (wantsDirectory) {
+                return;
+            }
+            if (wantsDeltas) {
+                String version = option(options, "v");
+                roomListUpdates.sendSnapshot(this, version == null ? -1 : number(version), null);
+            } else {
+                sendRoomList(null);
+            }
+        }
+        
+        // Runs once per session: leaves the rooms for good unless a RESUME got here first
+        private void endSession() {
+            if (!sessionLive.compareAndSet(true, false)) {
+                return;
+            }
+            if (sessionToken != null) {
+                sessions.remove(sessionToken, this);
+            }
+            try {
+                for (String roomId : joined.keySet()) {
+                    leaveRoom(roomId);
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        
+        // Runs on the timer thread, so it only queues messages or closes the transport
+        private void checkLiveness() {
+            if (closed) {
+                return;
+            }
+            long now = System.nanoTime();
+            long idleMs = TimeUnit.NANOSECONDS.toMillis(now - lastRead);
+            // Connections that never sent CONNECT are reaped like idle pingable ones
+            if ((wantsPing || username == null) && idleMs >= IDLE_TIMEOUT_MS) {
+                if (disconnect()) {
+                    ServerLog.info("idle_timeout", username, currentRoom, idleMs, null);
+                }
+                return;
+            }
+            
+            long progress = writeProgress;
+            boolean pending = writing || outbound.depth() > 0 
+                || (connection != null && connection.writePending());
+            if (!pending || progress != progressAtLastCheck) {
+                stalledSince = 0;
+            } else if (stalledSince == 0) {
+                stalledSince = now;
+            } else if (TimeUnit.NANOSECONDS.toMillis(now - stalledSince) >= WRITE_STALL_MS) {
+                if (disconnect()) {
+                    ServerLog.warn("write_stall", username, currentRoom, outbound.depth(), null);
+                }
+                return;
+            }
+            progressAtLastCheck = progress;
+            
+            if (wantsPing && idleMs >= PING_INTERVAL_MS) {
+                try {
+                    sendMessage(new Message(Message.MessageType.PING, "Server", String.valueOf(now)));
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            heartbeat = timers.schedule(this::checkLiveness, HEARTBEAT_MS);
+        }
+        
+        // CONNECT content carries the client's options as "key=value;key=value"
+        private void negotiate(String options) throws IOException {
+            String features = option(options, "features");
+            List<String> featureList = features == null 
+                ? Collections.emptyList() : Arrays.asList(features.split(","));
+            wantsDeltas = featureList.contains("deltas");
+            wantsRooms = featureList.contains("rooms");
+            wantsDirectory = featureList.contains("directory");
+            wantsPing = featureList.contains("ping");
+            
+            StringBuilder reply = new StringBuilder();
+            if (format != MessageCodec.Format.STREAM && MessageCodec.BINARY_CODEC.equals(option(options, "codec"))) {
+                format = MessageCodec.Format.BINARY;
+                reply.append("codec=").append(MessageCodec.BINARY_CODEC).append(';');
+            }
+            if (featureList.contains("resume")) {
+                if (sessionToken == null) {
+                    byte[] random = new byte[16];
+                    tokens.nextBytes(random);
+                    sessionToken = Base64.getUrlEncoder().withoutPadding().encodeToString(random);
+                    sessions.put(sessionToken, this);
+                }
+                reply.append("session=").append(sessionToken).append(';');
+            }
+            if (reply.length() > 0) {
+                sendMessage(new Message(Message.MessageType.CONNECT, "Server", reply.toString()));
+            }
+        }
+        
+        private static String option(String options, String key) {
+            if (options == null) {
+                return null;
+            }
+            for (String pair : options.split(";")) {
+                int eq = pair.indexOf('=');
+                if (eq > 0 && pair.substring(0, eq).trim().equals(key)) {
+                    return pair.substring(eq + 1).trim();
+                }
+            }
+            return null;
+        }
+        
+        // -1 unless value is a non-negative number
+        private static long number(String value) {
+            try {
+                return Long.parseLong(value);
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+        
+        void roomCreated(Message request, boolean created) throws IOException {
+            if (!created) {
+                reject(request, "room_exists", new Message(Message.MessageType.NOTIFICATION, 
+                    "Server", "Room ID already exists!", null));
+                return;
+            }
+            Message reply = new Message(Message.MessageType.NOTIFICATION, 
+                "Server", "Room '" + request.getRoomName() + "' created successfully!", request.getRoomId());
+            reply.setRoomName(request.getRoomName());
+            ack(request, reply);
+        }
+        
+        // Requests that carry an ID are answered with an ACK or ERROR bearing the
+        // same ID; the rest get the NOTIFICATION-style replies older clients read
+        private void ack(Message request, Message reply) throws IOException {
+            if (request.getRequestId() != null) {
+                reply.setType(Message.MessageType.ACK);
+                reply.setRequestId(request.getRequestId());
+            }
+            sendMessage(reply);
+        }
+        
+        // ERROR content is "code: description", e.g. "no_such_room: Room does not exist!"
+        private void reject(Message request, String code, Message reply) throws IOException {
+            if (request.getRequestId() != null) {
+                reply.setType(Message.MessageType.ERROR);
+                reply.setContent(code + ": " + reply.getContent());
+                reply.setRoomId(request.getRoomId());
+                reply.setRequestId(request.getRequestId());
+            }
+            sendMessage(reply);
+        }
+        
+        private void joinRoom(Room room, String roomId, Message request) throws IOException {
+            if (joined.containsKey(roomId)) {
+                currentRoom = roomId;
+                Message already = new Message(Message.MessageType.NOTIFICATION, 
+                    "Server", "Joined room: " + room.roomName, roomId);
+                already.setRoomName(room.roomName);
+                ack(request, already);
+                return;
+            }
+            if (!wantsRooms && currentRoom != null) {
+                leaveRoom(currentRoom);
             }
             
             currentRoom = roomId;
-            room.members.add(username);
-            System.out.println(username + " joined room: " + room.roomName);
+            joined.put(roomId, room);
+            room.addMember(this);
+            // Read after joining: anything older is replayed here, anything newer reaches
+            // us live, and a message in flight right now may at worst arrive twice
+            long historyEnd = room.history.nextSeq();
+            ServerLog.info("join", username, roomId, 0, null);
             
-            sendMessage(new Message(Message.MessageType.NOTIFICATION, 
-                "Server", "Joined room: " + room.roomName, roomId));
+            Message joined = new Message(Message.MessageType.NOTIFICATION, 
+                "Server", "Joined room: " + room.roomName, roomId);
+            joined.setRoomName(room.roomName);
+            ack(request, joined);
+            for (MessageCodec.Encoded past : room.history.recent(RoomHistory.BACKFILL, historyEnd)) {
+                send(past);
+            }
+            if (cluster != null && !cluster.owns(roomId)) {
+                // History lives with the owner, which replays it to us
+                cluster.joined(room, username, -1);
+            }
             
             broadcastToRoom(roomId, new Message(Message.MessageType.NOTIFICATION, 
-                "Server", username + " joined the room", roomId), username);
+                "Server", username + " joined the room", roomId), this);
             
-            broadcastRoomListToAll();
+            roomListUpdates.changed(roomId);
         }
         
-        private void leaveCurrentRoom() throws IOException {
-            if (currentRoom != null) {
-                Room room = rooms.get(currentRoom);
-                if (room != null) {
-                    room.members.remove(username);
-                    broadcastToRoom(currentRoom, new Message(Message.MessageType.NOTIFICATION, 
-                        "Server", username + " left the room", currentRoom), username);
-                    
-                    broadcastRoomListToAll();
+        private void leaveRoom(String roomId) throws IOException {
+            Room room = joined.remove(roomId);
+            if (roomId.equals(currentRoom)) {
+                // Carry on in any other room still joined
+                Iterator<String> others = joined.keySet().iterator();
+                currentRoom = others.hasNext() ? others.next() : null;
+            }
+            if (room != null) {
+                room.removeMember(this);
+                if (cluster != null && !cluster.owns(room.roomId)) {
+                    cluster.left(room);
                 }
-                currentRoom = null;
+                broadcastToRoom(roomId, new Message(Message.MessageType.NOTIFICATION, 
+                    "Server", username + " left the room", roomId), this);
+                
+                roomListUpdates.changed(roomId);
             }
         }
         
-        private void sendRoomList() throws IOException {
-            StringBuilder roomList = new StringBuilder();
-            for (Room room : rooms.values()) {
-                roomList.append(room.roomId).append("|")
-                       .append(room.roomName).append("|")
-                       .append(room.members.size()).append(";");
+        /**
+         * One page of the room directory: ROOM_PAGE takes "sort=members|name;offset=n;limit=n",
+         * ROOM_SEARCH "q=prefix;offset=n;limit=n". The reply has the request's type and
+         * content "total=n;offset=n;more=0|1;" followed by "id|name|count;" entries.
+         */
+        private void sendDirectory(Message request) throws IOException {
+            String options = request.getContent();
+            String offsetOption = option(options, "offset");
+            String limitOption = option(options, "limit");
+            long offsetValue = offsetOption == null ? 0 : number(offsetOption);
+            long limitValue = limitOption == null ? RoomDirectory.MAX_PAGE : number(limitOption);
+            if (offsetValue < 0 || limitValue < 1) {
+                reject(request, "bad_request", new Message(Message.MessageType.NOTIFICATION, 
+                    "Server", "Bad offset or limit", null));
+                return;
+            }
+            RoomDirectory directory = roomListUpdates.directory;
+            // Skipping walks the index, so never further than its end
+            int offset = (int) Math.min(offsetValue, directory.size());
+            int limit = (int) Math.min(limitValue, RoomDirectory.MAX_PAGE);
+            List<RoomDirectory.Entry> page;
+            if (request.getType() == Message.MessageType.ROOM_SEARCH) {
+                String query = option(options, "q");
+                page = directory.search(query == null ? "" : query, offset, limit);
+            } else {
+                page = directory.page("name".equals(option(options, "sort")) 
+                    ? RoomDirectory.Sort.NAME : RoomDirectory.Sort.MEMBERS, offset, limit);
+            }
+            
+            boolean more = page.size() > limit;
+            StringBuilder content = new StringBuilder();
+            content.append("total=").append(directory.size())
+                   .append(";offset=").append(offset)
+                   .append(";more=").append(more ? 1 : 0).append(';');
+            for (int i = 0; i < Math.min(limit, page.size()); i++) {
+                RoomDirectory.Entry entry = page.get(i);
+                content.append(entry.roomId).append('|')
+                       .append(entry.name).append('|')
+                       .append(entry.members).append(';');
             }
-            sendMessage(new Message(Message.MessageType.ROOM_LIST, 
-                "Server", roomList.toString()));
+            Message reply = new Message(request.getType(), "Server", content.toString());
+            reply.setRequestId(request.getRequestId());
+            sendMessage(reply);
         }
         
-        private static void broadcastRoomListToAll() {
+        private void sendRoomList(String requestId) throws IOException {
+            if (wantsDeltas) {
+                roomListUpdates.sendSnapshot(this, requestId);
+                return;
+            }
             StringBuilder roomList = new StringBuilder();
             for (Room room : rooms.values()) {
                 roomList.append(room.roomId).append("|")
                        .append(room.roomName).append("|")
-                       .append(room.members.size()).append(";");
-            }
-            
-            Message roomListMsg = new Message(Message.MessageType.ROOM_LIST, 
-                "Server", roomList.toString());
-            
-            for (ClientHandler client : clients.values()) {
-                try {
-                    client.sendMessage(roomListMsg);
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
+                       .append(room.memberCount()).append(";");
             }
+            Message list = new Message(Message.MessageType.ROOM_LIST, "Server", roomList.toString());
+            list.setRequestId(requestId);
+            sendMessage(list);
         }
         
-        private void broadcastToRoom(String roomId, Message message, String excludeUser) {
+        // Notifications reach the room's members on other nodes too
+        private static void broadcastToRoom(String roomId, Message message, ClientHandler exclude) throws IOException {
             Room room = rooms.get(roomId);
             if (room != null) {
-                for (String member : room.members) {
-                    if (!member.equals(excludeUser)) {
-                        ClientHandler handler = clients.get(member);
-                        if (handler != null) {
-                            try {
-                                handler.sendMessage(message);
-                            } catch (IOException e) {
-                                e.printStackTrace();
+                MessageCodec.Encoded encoded = new MessageCodec.Encoded(message);
+                broadcastToRoom(room, encoded, exclude);
+                if (cluster != null) {
+                    cluster.roomEvent(room, encoded);
+                }
+            }
+        }
+        
+        // Members connected to this node only
+        static void broadcastToRoom(Room room, MessageCodec.Encoded encoded, ClientHandler exclude) {
+            ClientHandler[] members = room.members;
+            if (members.length >= FanOut.THRESHOLD) {
+                // Waiting for every chunk keeps this sender's messages in order for each recipient
+                FanOut.POOL.invoke(new FanOut(members, 0, members.length, encoded, exclude));
+            } else {
+                FanOut.deliver(members, 0, members.length, encoded, exclude);
+            }
+        }
+        
+        private void sendMessage(Message message) throws IOException {
+            send(new MessageCodec.Encoded(message));
+        }
+        
+        // Only queues the frame, so a slow recipient never holds up the sender
+        void send(MessageCodec.Encoded message) throws IOException {
+            if (closed) {
+                return;
+            }
+            if (!outbound.offer(message.bytes(format))) {
+                if (disconnect()) {
+                    Metrics.slowDisconnects.increment();
+                    ServerLog.warn("slow_client", username, currentRoom, outbound.depth(), "outbound queue full");
+                }
+                return;
+            }
+            Metrics.messagesOut.increment();
+            if (connection != null) {
+                connection.requestFlush();
+            }
+        }
+        
+        // Collects everything queued (waiting at most chat.flushDelayMs for more)
+        // and writes it through one reusable buffer, a full buffer per write
+        private void writeLoop() {
+            byte[][] batch = new byte[OutboundQueue.BATCH_SIZE][];
+            ByteBuffer buffer = ByteBuffer.allocate(OutboundQueue.WRITE_BUFFER);
+            try {
+                while (!closed) {
+                    batch[0] = outbound.take();
+                    int count = outbound.drainTo(batch, 1, OutboundQueue.FLUSH_DELAY_MS);
+                    writing = true;
+                    for (int i = 0; i < count; i++) {
+                        byte[] frame = batch[i];
+                        for (int at = 0; at < frame.length; ) {
+                            int n = Math.min(buffer.remaining(), frame.length - at);
+                            buffer.put(frame, at, n);
+                            at += n;
+                            if (!buffer.hasRemaining()) {
+                                writeFully(buffer);
                             }
                         }
+                        batch[i] = null;
                     }
+                    writeFully(buffer);
+                    writing = false;
                 }
+            } catch (InterruptedException e) {
+                // cleanup() stops the writer
+            } catch (IOException e) {
+                disconnect();
             }
         }
         
-        private void sendMessage(Message message) throws IOException {
-            out.writeObject(message);
-            out.flush();
+        private void writeFully(ByteBuffer buffer) throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                if (out.write(buffer) > 0) {
+                    writeProgress++;
+                }
+            }
+            buffer.clear();
         }
         
-        private void cleanup() {
-            try {
-                if (currentRoom != null) {
-                    leaveCurrentRoom();
+        // Safe from any thread: closes the transport, and the thread that owns
+        // the connection runs cleanup() when its next read fails
+        boolean disconnect() {
+            if (!disconnecting.compareAndSet(false, true)) {
+                return false;
+            }
+            if (connection != null) {
+                connection.closeAsync();
+            } else {
+                try {
+                    socket.close();
+                } catch (IOException ignored) {
                 }
+            }
+            return true;
+        }
+        
+        void cleanup() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            ServerLog.info("disconnect", username, currentRoom, 0, null);
+            TimingWheel.Timeout pendingCheck = heartbeat;
+            if (pendingCheck != null) {
+                pendingCheck.cancel();
+            }
+            if (writer != null) {
+                writer.interrupt();
+            }
+            outbound.clear();
+            if (outbound.dropped() > 0) {
+                ServerLog.warn("dropped", username, null, outbound.dropped(), 
+                    "max queue depth " + outbound.maxDepth());
+            }
+            if (sessionToken != null && !ending) {
+                // Keep the seat warm for a RESUME from the same client
+                timers.schedule(this::endSession, RESUME_GRACE_MS);
+            } else {
+                endSession();
+            }
+            try {
                 if (username != null) {
-                    clients.remove(username);
+                    clients.remove(username, this);
+                }
+                if (connection != null) {
+                    connection.close();
                 }
                 if (socket != null) {
                     socket.close();
@@ -0,0 +1,183 @@
+import java.io.*;
+import java.time.*;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Asynchronous server event log.
+ *
+ * Callers record structured events (type, user, room, a number and an
+ * optional detail) into a preallocated ring of slots; a single background
+ * thread formats and prints them. Recording claims a slot with a CAS and
+ * copies a few references, so it never blocks on console I/O, never takes a
+ * lock and never allocates. When the writer falls behind the ring fills and
+ * further events are dropped and counted instead of slowing the server down.
+ *
+ * chat.logLevel (debug, info, warn, off) filters events before they are
+ * queued. Chat messages are left out unless chat.logTextSample=N asks for
+ * about one in N of them.
+ */
+class ServerLog {
+    enum Level { DEBUG, INFO, WARN, OFF }
+
+    static final Level LEVEL = Level.valueOf(System.getProperty("chat.logLevel", "info").toUpperCase());
+    // 0 logs no chat text at all, so the writer never has to decode a relayed frame
+    static final int TEXT_SAMPLE = Math.max(0, Integer.getInteger("chat.logTextSample", 0));
+    private static final int CAPACITY = Integer.highestOneBit(Math.max(2, Integer.getInteger("chat.logBuffer", 8192)));
+
+    private static final Slot[] slots = new Slot[CAPACITY];
+    private static final AtomicLong tail = new AtomicLong();
+    private static final LongAdder dropped = new LongAdder();
+    private static volatile long head;
+    private static volatile boolean writerParked;
+    private static final Thread writer;
+
+    static {
+        for (int i = 0; i < CAPACITY; i++) {
+            slots[i] = new Slot();
+        }
+        writer = new Thread(ServerLog::writeLoop, "server-log");
+        writer.setDaemon(true);
+        writer.start();
+        // Let whatever is still queued reach the console on a normal exit
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+            while (head < tail.get() && System.nanoTime() < deadline) {
+                LockSupport.unpark(writer);
+                Thread.yield();
+            }
+        }));
+    }
+
+    static boolean enabled(Level level) {
+        return level.compareTo(LEVEL) >= 0 && level != Level.OFF;
+    }
+
+    static void info(String type, String user, String room, long value, Object detail) {
+        log(Level.INFO, type, user, room, value, detail);
+    }
+
+    static void warn(String type, String user, String room, long value, Object detail) {
+        log(Level.WARN, type, user, room, value, detail);
+    }
+
+    /** A chat message, subject to chat.logTextSample. */
+    static void text(String user, String room, String content) {
+        if (sampled()) {
+            log(Level.INFO, "text", user, room, content == null ? 0 : content.length(), content);
+        }
+    }
+
+    /** A chat message still in its encoded form; only the writer thread decodes it. */
+    static void text(String user, String room, MessageCodec.Encoded message) {
+        if (sampled()) {
+            log(Level.INFO, "text", user, room, 0, message);
+        }
+    }
+
+    private static boolean sampled() {
+        return TEXT_SAMPLE > 0 && enabled(Level.INFO)
+            && (TEXT_SAMPLE == 1 || ThreadLocalRandom.current().nextInt(TEXT_SAMPLE) == 0);
+    }
+
+    static long dropped() {
+        return dropped.sum();
+    }
+
+    static void log(Level level, String type, String user, String room, long value, Object detail) {
+        if (!enabled(level)) {
+            return;
+        }
+        long claim;
+        do {
+            claim = tail.get();
+            if (claim - head >= CAPACITY) {
+                dropped.increment();
+                return;
+            }
+        } while (!tail.compareAndSet(claim, claim + 1));
+
+        Slot slot = slots[(int) claim & (CAPACITY - 1)];
+        slot.time = System.currentTimeMillis();
+        slot.level = level;
+        slot.type = type;
+        slot.user = user;
+        slot.room = room;
+        slot.value = value;
+        slot.detail = detail;
+        // Publishing the sequence hands the slot to the writer
+        slot.sequence = claim;
+        if (writerParked) {
+            LockSupport.unpark(writer);
+        }
+    }
+
+    private static void writeLoop() {
+        PrintStream out = System.out;
+        DateTimeFormatter timeFormat = DateTimeFormatter.ofPattern("HH:mm:ss.SSS");
+        ZoneId zone = ZoneId.systemDefault();
+        StringBuilder line = new StringBuilder(256);
+        long reportedDrops = 0;
+        while (true) {
+            long next = head;
+            Slot slot = slots[(int) next & (CAPACITY - 1)];
+            if (slot.sequence != next) {
+                out.flush();
+                long drops = dropped.sum();
+                if (drops != reportedDrops) {
+                    out.println("Log: " + (drops - reportedDrops) + " events dropped, writer fell behind");
+                    reportedDrops = drops;
+                }
+                writerParked = true;
+                if (slot.sequence != next) {
+                    LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(100));
+                }
+                writerParked = false;
+                continue;
+            }
+
+            line.setLength(0);
+            timeFormat.formatTo(Instant.ofEpochMilli(slot.time).atZone(zone).toLocalTime(), line);
+            line.append(' ').append(slot.level).append(' ').append(slot.type);
+            if (slot.user != null) {
+                line.append(" user=").append(slot.user);
+            }
+            if (slot.room != null) {
+                line.append(" room=").append(slot.room);
+            }
+            long value = slot.value;
+            Object detail = slot.detail;
+            if (detail instanceof MessageCodec.Encoded) {
+                String content = ((MessageCodec.Encoded) detail).message().getContent();
+                value = content == null ? 0 : content.length();
+                detail = content;
+            }
+            if (value != 0) {
+                line.append(" n=").append(value);
+            }
+            if (detail != null) {
+                line.append(" | ").append(detail);
+            }
+            out.append(line).append(System.lineSeparator());
+
+            // Drop references so queued messages can be collected, then free the slot
+            slot.user = null;
+            slot.room = null;
+            slot.detail = null;
+            head = next + 1;
+        }
+    }
+
+    private static final class Slot {
+        volatile long sequence = -1;
+        long time;
+        Level level;
+        String type;
+        String user;
+        String room;
+        long value;
+        Object detail;
+    }
+}
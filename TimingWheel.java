@@ -0,0 +1,102 @@
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Hashed timing wheel: one thread and one array of buckets for any number of
+ * timeouts.
+ *
+ * Time advances in ticks of a fixed length. A timeout lands in the bucket its
+ * deadline hashes to, together with how many full turns of the wheel it must
+ * wait, so scheduling and cancelling are O(1) whatever the number of pending
+ * timeouts; each tick only looks at one bucket. Deadlines are rounded up to
+ * the tick, which is plenty for heartbeats and idle checks.
+ *
+ * Tasks run on the wheel thread and must be short and non-blocking.
+ */
+class TimingWheel implements Runnable {
+    private final long tickNanos;
+    private final List<Timeout>[] buckets;
+    private final int mask;
+    // Other threads hand new timeouts over here; only the wheel thread touches buckets
+    private final Queue<Timeout> added = new ConcurrentLinkedQueue<>();
+    private long tick;
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    TimingWheel(String name, long tickMs, int size) {
+        int bucketCount = Integer.highestOneBit(Math.max(2, size - 1)) << 1;
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, tickMs));
+        this.buckets = new List[bucketCount];
+        this.mask = bucketCount - 1;
+        for (int i = 0; i < bucketCount; i++) {
+            buckets[i] = new ArrayList<>();
+        }
+        Thread thread = new Thread(this, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    Timeout schedule(Runnable task, long delayMs) {
+        Timeout timeout = new Timeout(task, TimeUnit.MILLISECONDS.toNanos(delayMs));
+        added.add(timeout);
+        return timeout;
+    }
+
+    @Override
+    public void run() {
+        long start = System.nanoTime();
+        while (true) {
+            long nextTick = start + (tick + 1) * tickNanos;
+            long sleep = nextTick - System.nanoTime();
+            if (sleep > 0) {
+                LockSupport.parkNanos(sleep);
+                continue;
+            }
+
+            Timeout timeout;
+            while ((timeout = added.poll()) != null) {
+                long ticks = Math.max(1, (timeout.delayNanos + tickNanos - 1) / tickNanos);
+                timeout.rounds = (ticks - 1) / buckets.length;
+                buckets[(int) ((tick + ticks) & mask)].add(timeout);
+            }
+
+            tick++;
+            List<Timeout> bucket = buckets[(int) (tick & mask)];
+            int kept = 0;
+            for (int i = 0; i < bucket.size(); i++) {
+                timeout = bucket.get(i);
+                if (timeout.cancelled) {
+                    continue;
+                }
+                if (timeout.rounds > 0) {
+                    timeout.rounds--;
+                    bucket.set(kept++, timeout);
+                    continue;
+                }
+                try {
+                    timeout.task.run();
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+            }
+            bucket.subList(kept, bucket.size()).clear();
+        }
+    }
+
+    static final class Timeout {
+        final Runnable task;
+        final long delayNanos;
+        long rounds;
+        volatile boolean cancelled;
+
+        Timeout(Runnable task, long delayNanos) {
+            this.task = task;
+            this.delayNanos = delayNanos;
+        }
+
+        // The wheel drops cancelled timeouts when it next reaches their bucket
+        void cancel() {
+            cancelled = true;
+        }
+    }
+}
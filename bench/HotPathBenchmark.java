@@ -0,0 +1,330 @@
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.net.Socket;
+import java.nio.file.*;
+import java.util.*;
+import java.util.regex.Pattern;
+
+/**
+ * Microbenchmarks for the server's hot paths: message encode/decode per
+ * format, room fan-out at several room sizes, the binary TEXT relay path a
+ * socket reader takes, room-list building, directory paging and handleMessage
+ * dispatch.
+ *
+ * Everything runs in-process against real ClientHandlers that have no socket,
+ * so a send stops at the handler's outbound queue (full queues drop their
+ * oldest frame, as a busy server would). Each benchmark is warmed up, then
+ * timed over fixed-length iterations; the score is the mean time per
+ * operation with a 99.9% confidence half-width, plus bytes allocated per
+ * operation by every thread in the JVM, so work handed off to the log writer,
+ * the fan-out pool or the room-list publisher is counted too (idle
+ * background threads add a little noise). relay.textFrame is the number to
+ * watch for garbage: what remains there is the relayed frame and its
+ * history entry, however many recipients there are.
+ *
+ * Results print as a table and, with -rff, are also written as JSON in the
+ * layout JMH uses for -rf json, so the same tooling can track both.
+ *
+ * Usage: java -cp . HotPathBenchmark [-wi 3] [-i 5] [-r 500] [-rff results.json] [regex]
+ */
+public class HotPathBenchmark {
+    private static final int[] ROOM_SIZES = { 10, 100, 1000, 10000 };
+    private static final int[] ROOM_COUNTS = { 100, 1000, 10000 };
+    // Below the parallel fan-out threshold, so every allocation happens on the measured thread
+    private static final int[] RELAY_SIZES = { 1, 10, 100, 1000 };
+
+    private static volatile Object sink;
+
+    private static int warmups = 3;
+    private static int iterations = 5;
+    private static long iterationMs = 500;
+    private static Pattern filter = Pattern.compile(".*");
+    private static final List<Result> results = new ArrayList<>();
+
+    interface Op {
+        Object run() throws Exception;
+    }
+
+    public static void main(String[] args) throws Exception {
+        // One handler sends millions of messages a second here; measure the path, not the limiter
+        System.setProperty("chat.limits", "false");
+        String resultFile = null;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "-wi": warmups = Integer.parseInt(args[++i]); break;
+                case "-i": iterations = Integer.parseInt(args[++i]); break;
+                case "-r": iterationMs = Long.parseLong(args[++i]); break;
+                case "-rff": resultFile = args[++i]; break;
+                default: filter = Pattern.compile(args[i]);
+            }
+        }
+
+        // The server logs connects and joins to stdout; keep that out of the timings
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        }));
+        console.printf("%-40s %-12s %14s %12s %12s%n", "benchmark", "param", "ns/op", "error", "B/op");
+        try {
+            codec(console);
+            roomList(console);
+            roomPage(console);
+            fanOut(console);
+            relay(console);
+            dispatch(console);
+        } finally {
+            System.setOut(console);
+        }
+
+        if (resultFile != null) {
+            Files.write(Paths.get(resultFile), toJson().getBytes("UTF-8"));
+            console.println("Results written to " + resultFile);
+        }
+    }
+
+    private static void codec(PrintStream console) throws Exception {
+        Message text = new Message(Message.MessageType.TEXT, "alice",
+            "Hello everyone, this is a fairly ordinary chat message.", "lobby");
+        for (MessageCodec.Format format : MessageCodec.Format.values()) {
+            bench(console, "codec.encode", format.name(), () -> MessageCodec.encodeFrameBytes(text, format));
+        }
+        for (MessageCodec.Format format : new MessageCodec.Format[] {
+                MessageCodec.Format.SERIALIZED, MessageCodec.Format.BINARY }) {
+            byte[] frame = MessageCodec.encodeFrameBytes(text, format);
+            int length = frame.length - MessageCodec.HEADER_SIZE;
+            bench(console, "codec.decode", format.name(),
+                () -> MessageCodec.decode(frame, MessageCodec.HEADER_SIZE, length));
+        }
+    }
+
+    // ROOM_LIST from a client without deltas builds the full "id|name|count;" list inline
+    private static void roomList(PrintStream console) throws Exception {
+        if (!filter.matcher("roomList.full").find()) {
+            return;
+        }
+        Server.ClientHandler reader = connect("list-reader", "codec=binary");
+        Message request = new Message(Message.MessageType.ROOM_LIST, "list-reader", null);
+        int created = 0;
+        for (int count : ROOM_COUNTS) {
+            for (; created < count; created++) {
+                Message create = new Message(Message.MessageType.CREATE_ROOM, "list-reader", "", "list-" + created);
+                create.setRoomName("Room number " + created);
+                reader.handleMessage(create);
+            }
+            bench(console, "roomList.full", String.valueOf(count), () -> {
+                reader.handleMessage(request);
+                return reader.outbound.poll();
+            });
+        }
+    }
+
+    // ROOM_PAGE from a directory client reads one page of the index, however many rooms exist
+    private static void roomPage(PrintStream console) throws Exception {
+        if (!filter.matcher("roomList.page").find()) {
+            return;
+        }
+        Server.ClientHandler reader = connect("page-reader", "codec=binary;features=directory");
+        Message request = new Message(Message.MessageType.ROOM_PAGE, "page-reader", "sort=members;offset=0;limit=50");
+        int created = 0;
+        for (int count : ROOM_COUNTS) {
+            for (; created < count; created++) {
+                Message create = new Message(Message.MessageType.CREATE_ROOM, "page-reader", "", "page-" + created);
+                create.setRoomName("Page room " + created);
+                reader.handleMessage(create);
+            }
+            // The directory is filled by the room-list publisher thread
+            while (Server.roomListUpdates.directory.size() < Server.rooms.size()) {
+                Thread.sleep(10);
+            }
+            bench(console, "roomList.page", String.valueOf(count), () -> {
+                reader.handleMessage(request);
+                return reader.outbound.poll();
+            });
+        }
+    }
+
+    // One TEXT from a member reaches the other size - 1 members
+    private static void fanOut(PrintStream console) throws Exception {
+        int next = 0;
+        for (int size : ROOM_SIZES) {
+            if (!filter.matcher("fanOut.text").find()) {
+                break;
+            }
+            String roomId = "fan-" + size;
+            Server.ClientHandler sender = connect("fan-sender-" + size, "codec=binary;features=deltas");
+            Message create = new Message(Message.MessageType.CREATE_ROOM, "fan-sender-" + size, "", roomId);
+            create.setRoomName(roomId);
+            sender.handleMessage(create);
+            sender.handleMessage(new Message(Message.MessageType.JOIN_ROOM, "fan-sender-" + size, null, roomId));
+            for (int i = 1; i < size; i++) {
+                String name = "fan-member-" + next++;
+                Server.ClientHandler member = connect(name, "codec=binary;features=deltas");
+                member.handleMessage(new Message(Message.MessageType.JOIN_ROOM, name, null, roomId));
+            }
+            Message text = new Message(Message.MessageType.TEXT, "fan-sender-" + size, "hello room", roomId);
+            bench(console, "fanOut.text", String.valueOf(size), () -> {
+                sender.handleMessage(text);
+                return text;
+            });
+        }
+    }
+
+    // The same TEXT arriving as a binary frame, as the socket readers hand it over
+    private static void relay(PrintStream console) throws Exception {
+        int next = 0;
+        for (int size : RELAY_SIZES) {
+            if (!filter.matcher("relay.textFrame").find()) {
+                break;
+            }
+            String roomId = "relay-" + size;
+            Server.ClientHandler sender = connect("relay-sender-" + size, "codec=binary;features=deltas");
+            Message create = new Message(Message.MessageType.CREATE_ROOM, "relay-sender-" + size, "", roomId);
+            create.setRoomName(roomId);
+            sender.handleMessage(create);
+            sender.handleMessage(new Message(Message.MessageType.JOIN_ROOM, "relay-sender-" + size, null, roomId));
+            for (int i = 1; i < size; i++) {
+                String name = "relay-member-" + next++;
+                Server.ClientHandler member = connect(name, "codec=binary;features=deltas");
+                member.handleMessage(new Message(Message.MessageType.JOIN_ROOM, name, null, roomId));
+            }
+            byte[] frame = MessageCodec.encodeFrameBytes(new Message(Message.MessageType.TEXT,
+                "relay-sender-" + size, "hello room", roomId), MessageCodec.Format.BINARY);
+            int length = frame.length - MessageCodec.HEADER_SIZE;
+            bench(console, "relay.textFrame", String.valueOf(size), () -> {
+                sender.handleFrame(frame, MessageCodec.HEADER_SIZE, length);
+                return frame;
+            });
+        }
+    }
+
+    private static void dispatch(PrintStream console) throws Exception {
+        Server.ClientHandler alone = connect("dispatch-alone", "codec=binary;features=deltas");
+        Message create = new Message(Message.MessageType.CREATE_ROOM, "dispatch-alone", "", "dispatch");
+        create.setRoomName("dispatch");
+        alone.handleMessage(create);
+        alone.handleMessage(new Message(Message.MessageType.JOIN_ROOM, "dispatch-alone", null, "dispatch"));
+
+        Message text = new Message(Message.MessageType.TEXT, "dispatch-alone", "only me here", "dispatch");
+        bench(console, "dispatch.text", "no-recipients", () -> {
+            alone.handleMessage(text);
+            return text;
+        });
+        Message missing = new Message(Message.MessageType.JOIN_ROOM, "dispatch-alone", null, "no-such-room");
+        bench(console, "dispatch.join", "missing-room", () -> {
+            alone.handleMessage(missing);
+            return alone.outbound.poll();
+        });
+    }
+
+    private static Server.ClientHandler connect(String name, String options) throws IOException {
+        Server.ClientHandler handler = new Server.ClientHandler((Socket) null);
+        handler.handleMessage(new Message(Message.MessageType.CONNECT, name, options));
+        return handler;
+    }
+
+    private static void bench(PrintStream console, String name, String param, Op op) throws Exception {
+        if (!filter.matcher(name).find()) {
+            return;
+        }
+        for (int i = 0; i < warmups; i++) {
+            iteration(op);
+        }
+        double[] nsPerOp = new double[iterations];
+        double bytesPerOp = 0;
+        for (int i = 0; i < iterations; i++) {
+            double[] measured = iteration(op);
+            nsPerOp[i] = measured[0];
+            bytesPerOp += measured[1] / iterations;
+        }
+
+        double mean = Arrays.stream(nsPerOp).average().orElse(0);
+        double variance = 0;
+        for (double score : nsPerOp) {
+            variance += (score - mean) * (score - mean);
+        }
+        double error = iterations > 1 ? 3.29 * Math.sqrt(variance / (iterations - 1)) / Math.sqrt(iterations) : 0;
+        results.add(new Result(name, param, mean, error, bytesPerOp, nsPerOp));
+        console.printf("%-40s %-12s %14.1f %12.1f %12.0f%n", name, param, mean, error, bytesPerOp);
+    }
+
+    // Returns { ns per op, bytes allocated per op } for one timed iteration
+    private static double[] iteration(Op op) throws Exception {
+        long ops = 0;
+        long allocatedBefore = allocatedBytes();
+        long start = System.nanoTime();
+        long deadline = start + iterationMs * 1_000_000;
+        long now;
+        do {
+            // Batches of 16 keep the clock reads out of the measurement
+            for (int i = 0; i < 16; i++) {
+                sink = op.run();
+            }
+            ops += 16;
+        } while ((now = System.nanoTime()) < deadline);
+        return new double[] { (now - start) / (double) ops, (allocatedBytes() - allocatedBefore) / (double) ops };
+    }
+
+    // Summed over all live threads; a thread that exits takes its count with it
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!(threads instanceof com.sun.management.ThreadMXBean)) {
+            return 0;
+        }
+        long total = 0;
+        for (long bytes : ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(threads.getAllThreadIds())) {
+            total += Math.max(0, bytes);
+        }
+        return total;
+    }
+
+    private static String toJson() {
+        StringBuilder json = new StringBuilder("[\n");
+        for (int r = 0; r < results.size(); r++) {
+            Result result = results.get(r);
+            json.append("  {\n")
+                .append("    \"benchmark\" : \"HotPathBenchmark.").append(result.name).append("\",\n")
+                .append("    \"mode\" : \"avgt\",\n")
+                .append("    \"threads\" : 1,\n")
+                .append("    \"warmupIterations\" : ").append(warmups).append(",\n")
+                .append("    \"measurementIterations\" : ").append(iterations).append(",\n")
+                .append("    \"measurementTime\" : \"").append(iterationMs).append(" ms\",\n")
+                .append("    \"params\" : { \"param\" : \"").append(result.param).append("\" },\n")
+                .append("    \"primaryMetric\" : {\n")
+                .append("      \"score\" : ").append(result.score).append(",\n")
+                .append("      \"scoreError\" : ").append(result.error).append(",\n")
+                .append("      \"scoreUnit\" : \"ns/op\",\n")
+                .append("      \"rawData\" : [ ").append(Arrays.toString(result.raw)).append(" ]\n")
+                .append("    },\n")
+                .append("    \"secondaryMetrics\" : {\n")
+                .append("      \"gc.alloc.rate.norm\" : { \"score\" : ").append(result.bytesPerOp)
+                .append(", \"scoreUnit\" : \"B/op\" }\n")
+                .append("    }\n")
+                .append("  }").append(r < results.size() - 1 ? "," : "").append("\n");
+        }
+        return json.append("]\n").toString();
+    }
+
+    private static final class Result {
+        final String name;
+        final String param;
+        final double score;
+        final double error;
+        final double bytesPerOp;
+        final double[] raw;
+
+        Result(String name, String param, double score, double error, double bytesPerOp, double[] raw) {
+            this.name = name;
+            this.param = param;
+            this.score = score;
+            this.error = error;
+            this.bytesPerOp = bytesPerOp;
+            this.raw = raw;
+        }
+    }
+}
@@ -0,0 +1,433 @@
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Headless load generator speaking the framed binary protocol.
+ *
+ * Simulated users are spread over a few selector loops, so one JVM can drive
+ * tens of thousands of connections. Each user connects, joins one of the
+ * rooms, sends TEXT messages at a fixed rate and, with churn enabled, leaves
+ * for another random room now and then. Every message carries its send time;
+ * since senders and receivers share this JVM's clock, each delivery gives an
+ * end-to-end latency. Messages sent before a user joined (history replay) are
+ * not counted. Room requests carry request IDs and go out without waiting for
+ * replies; any the server rejects are counted.
+ *
+ * Prints one line per second and a summary at the end; the last line starts
+ * with RESULT and lists key=value pairs for scripts.
+ *
+ * Usage: java -cp . LoadGenerator [-host localhost] [-port 5555] [-users 1000]
+ *        [-rooms 10] [-rate 1] [-payload 100] [-churn 0] [-duration 30] [-loops 2]
+ *   -rate is messages per second per user, -churn room switches per second per user
+ */
+public class LoadGenerator {
+    private static final String TAG = "lg:";
+
+    private static String host = "localhost";
+    private static int port = 5555;
+    private static int users = 1000;
+    private static int rooms = 10;
+    private static double rate = 1;
+    private static int payload = 100;
+    private static double churn = 0;
+    private static int duration = 30;
+    private static int loopCount = 2;
+
+    private static final LongAdder sent = new LongAdder();
+    private static final LongAdder received = new LongAdder();
+    private static final LongAdder joins = new LongAdder();
+    private static final LongAdder errors = new LongAdder();
+    private static final LongAdder rejected = new LongAdder();
+    private static final AtomicInteger connected = new AtomicInteger();
+    private static volatile boolean running = true;
+
+    public static void main(String[] args) throws Exception {
+        for (int i = 0; i < args.length; i++) {
+            String value = args[++i];
+            switch (args[i - 1]) {
+                case "-host": host = value; break;
+                case "-port": port = Integer.parseInt(value); break;
+                case "-users": users = Integer.parseInt(value); break;
+                case "-rooms": rooms = Integer.parseInt(value); break;
+                case "-rate": rate = Double.parseDouble(value); break;
+                case "-payload": payload = Integer.parseInt(value); break;
+                case "-churn": churn = Double.parseDouble(value); break;
+                case "-duration": duration = Integer.parseInt(value); break;
+                case "-loops": loopCount = Integer.parseInt(value); break;
+                default: throw new IllegalArgumentException("Unknown option " + args[i - 1]);
+            }
+        }
+
+        String run = Long.toString(System.currentTimeMillis() % 100000, 36);
+        Loop[] loops = new Loop[loopCount];
+        for (int i = 0; i < loopCount; i++) {
+            loops[i] = new Loop(i);
+            loops[i].thread.start();
+        }
+        System.out.printf("Connecting %d users to %s:%d (%d rooms, %.2f msg/s each, %d byte payload, churn %.3f/s)%n",
+            users, host, port, rooms, rate, payload, churn);
+        long connectStart = System.nanoTime();
+        for (int i = 0; i < users; i++) {
+            try {
+                SocketChannel channel = SocketChannel.open(new InetSocketAddress(host, port));
+                connected.incrementAndGet();
+                loops[i % loopCount].add(new User(run + "-" + i, i, channel));
+            } catch (IOException e) {
+                errors.increment();
+            }
+        }
+        System.out.printf("Connected %d users in %d ms%n", connected.get(),
+            TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - connectStart));
+
+        // Counting starts once everyone is connected; the ramp-up is not measured
+        for (Loop loop : loops) {
+            loop.intervalLatency.set(new Histogram());
+        }
+        long start = System.nanoTime();
+        long firstSent = sent.sum();
+        long firstReceived = received.sum();
+        long lastSent = firstSent;
+        long lastReceived = firstReceived;
+        Histogram total = new Histogram();
+        for (int second = 1; second <= duration; second++) {
+            Thread.sleep(Math.max(0, start + TimeUnit.SECONDS.toNanos(second) - System.nanoTime()) / 1_000_000);
+            Histogram interval = new Histogram();
+            for (Loop loop : loops) {
+                interval.add(loop.intervalLatency.getAndSet(new Histogram()));
+            }
+            total.add(interval);
+            long totalSent = sent.sum();
+            long totalReceived = received.sum();
+            System.out.printf("t=%3ds users=%d sent/s=%d recv/s=%d p50=%.2fms p99=%.2fms errors=%d%n",
+                second, connected.get(), totalSent - lastSent, totalReceived - lastReceived,
+                interval.percentile(50) / 1000.0, interval.percentile(99) / 1000.0, errors.sum());
+            lastSent = totalSent;
+            lastReceived = totalReceived;
+        }
+        running = false;
+        for (Loop loop : loops) {
+            loop.selector.wakeup();
+            loop.thread.join(5000);
+        }
+
+        double seconds = (System.nanoTime() - start) / 1e9;
+        long sentCount = lastSent - firstSent;
+        long deliveredCount = lastReceived - firstReceived;
+        System.out.printf("%nSent %d, delivered %d, joins %d, rejected %d, errors %d over %.1f s%n",
+            sentCount, deliveredCount, joins.sum(), rejected.sum(), errors.sum(), seconds);
+        System.out.printf("Throughput: %.0f msg/s sent, %.0f msg/s delivered%n",
+            sentCount / seconds, deliveredCount / seconds);
+        System.out.printf("Latency ms: p50=%.2f p90=%.2f p99=%.2f p99.9=%.2f max=%.2f%n",
+            total.percentile(50) / 1000.0, total.percentile(90) / 1000.0, total.percentile(99) / 1000.0,
+            total.percentile(99.9) / 1000.0, total.max / 1000.0);
+        System.out.printf("RESULT users=%d rooms=%d rate=%.3f payload=%d churn=%.3f seconds=%.1f sent=%d "
+                + "delivered=%d rejected=%d errors=%d send_rate=%.0f deliver_rate=%.0f p50_us=%d p90_us=%d p99_us=%d "
+                + "p999_us=%d max_us=%d%n",
+            users, rooms, rate, payload, churn, seconds, sentCount, deliveredCount, rejected.sum(), errors.sum(),
+            sentCount / seconds, deliveredCount / seconds, total.percentile(50), total.percentile(90),
+            total.percentile(99), total.percentile(99.9), total.max);
+    }
+
+    /** One selector thread driving a share of the users. */
+    private static final class Loop implements Runnable {
+        final Selector selector;
+        final Thread thread;
+        final PriorityQueue<User> due = new PriorityQueue<>(Comparator.comparingLong(u -> u.nextAction));
+        final AtomicReference<Histogram> intervalLatency = new AtomicReference<>(new Histogram());
+        final Queue<User> added = new ConcurrentLinkedQueue<>();
+        final Random random = new Random();
+
+        Loop(int index) throws IOException {
+            this.selector = Selector.open();
+            this.thread = new Thread(this, "load-" + index);
+        }
+
+        void add(User user) {
+            added.add(user);
+            selector.wakeup();
+        }
+
+        private void register(User user) throws IOException {
+            user.loop = this;
+            user.channel.configureBlocking(false);
+            user.channel.socket().setTcpNoDelay(true);
+            user.key = user.channel.register(selector, SelectionKey.OP_READ, user);
+            user.send(new Message(Message.MessageType.CONNECT, user.name, "codec=binary;features=deltas,ping"));
+            if (user.index < rooms) {
+                Message create = new Message(Message.MessageType.CREATE_ROOM, user.name, "", "lg-" + user.index);
+                create.setRoomName("Load room " + user.index);
+                user.request(create);
+            }
+            user.room = "lg-" + (user.index % rooms);
+            user.joinedAt = System.nanoTime();
+            user.request(new Message(Message.MessageType.JOIN_ROOM, user.name, null, user.room));
+            joins.increment();
+            if (rate + churn > 0) {
+                // Spread the first sends over one interval so users do not fire in lockstep
+                user.nextAction = System.nanoTime() + (long) (random.nextDouble() * interval(rate + churn));
+                due.add(user);
+            }
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                try {
+                    User user;
+                    while ((user = added.poll()) != null) {
+                        register(user);
+                    }
+                    long now = System.nanoTime();
+                    while (!due.isEmpty() && due.peek().nextAction - now <= 0) {
+                        user = due.poll();
+                        if (user.act(now, random)) {
+                            // A loop that fell behind sends late rather than in a burst
+                            user.nextAction = Math.max(user.nextAction + (long) interval(rate + churn), now);
+                            due.add(user);
+                        }
+                    }
+                    long waitMs = due.isEmpty() ? 100
+                        : Math.max(1, TimeUnit.NANOSECONDS.toMillis(due.peek().nextAction - System.nanoTime()));
+                    selector.select(waitMs);
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        user = (User) key.attachment();
+                        if (key.isValid() && key.isReadable()) {
+                            user.onReadable();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            user.flush();
+                        }
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            for (SelectionKey key : selector.keys()) {
+                try {
+                    key.channel().close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+
+        void record(long latencyNanos) {
+            intervalLatency.get().record(TimeUnit.NANOSECONDS.toMicros(latencyNanos));
+        }
+
+        static double interval(double perSecond) {
+            return 1e9 / perSecond;
+        }
+    }
+
+    private static final class User {
+        final String name;
+        final int index;
+        final SocketChannel channel;
+        final ArrayDeque<ByteBuffer> pending = new ArrayDeque<>();
+        Loop loop;
+        SelectionKey key;
+        ByteBuffer readBuffer = ByteBuffer.allocate(8192);
+        String room;
+        long joinedAt;
+        long nextAction;
+        int requests;
+        boolean closed;
+
+        User(String name, int index, SocketChannel channel) {
+            this.name = name;
+            this.index = index;
+            this.channel = channel;
+        }
+
+        // Returns false once the user is gone and should not be rescheduled
+        boolean act(long now, Random random) {
+            if (closed) {
+                return false;
+            }
+            try {
+                if (random.nextDouble() * (rate + churn) < churn) {
+                    room = "lg-" + random.nextInt(rooms);
+                    joinedAt = now;
+                    request(new Message(Message.MessageType.JOIN_ROOM, name, null, room));
+                    joins.increment();
+                } else {
+                    StringBuilder content = new StringBuilder(payload + 24).append(TAG).append(now).append(':');
+                    while (content.length() < payload) {
+                        content.append('x');
+                    }
+                    send(new Message(Message.MessageType.TEXT, name, content.toString(), room));
+                    sent.increment();
+                }
+                return true;
+            } catch (IOException e) {
+                fail();
+                return false;
+            }
+        }
+
+        void request(Message message) throws IOException {
+            message.setRequestId(String.valueOf(++requests));
+            send(message);
+        }
+
+        void send(Message message) throws IOException {
+            pending.add(ByteBuffer.wrap(MessageCodec.encodeFrameBytes(message, MessageCodec.Format.BINARY)));
+            flush();
+        }
+
+        void flush() throws IOException {
+            while (!pending.isEmpty()) {
+                ByteBuffer next = pending.peek();
+                channel.write(next);
+                if (next.hasRemaining()) {
+                    key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    return;
+                }
+                pending.poll();
+            }
+            key.interestOps(SelectionKey.OP_READ);
+        }
+
+        void onReadable() {
+            try {
+                if (channel.read(readBuffer) < 0) {
+                    fail();
+                    return;
+                }
+                readBuffer.flip();
+                int needed = 0;
+                while (readBuffer.remaining() >= MessageCodec.HEADER_SIZE) {
+                    int len = readBuffer.getInt(readBuffer.position());
+                    MessageCodec.checkLength(len);
+                    if (readBuffer.remaining() < MessageCodec.HEADER_SIZE + len) {
+                        needed = MessageCodec.HEADER_SIZE + len;
+                        break;
+                    }
+                    int start = readBuffer.position() + MessageCodec.HEADER_SIZE;
+                    onMessage(MessageCodec.decode(readBuffer.array(), start, len));
+                    readBuffer.position(start + len);
+                }
+                readBuffer.compact();
+                if (readBuffer.capacity() < needed) {
+                    ByteBuffer bigger = ByteBuffer.allocate(needed);
+                    readBuffer.flip();
+                    bigger.put(readBuffer);
+                    readBuffer = bigger;
+                }
+            } catch (IOException e) {
+                fail();
+            }
+        }
+
+        private void onMessage(Message message) throws IOException {
+            if (message.getType() == Message.MessageType.PING) {
+                send(new Message(Message.MessageType.PONG, name, message.getContent()));
+                return;
+            }
+            if (message.getType() == Message.MessageType.ERROR) {
+                rejected.increment();
+                return;
+            }
+            if (message.getType() != Message.MessageType.TEXT) {
+                return;
+            }
+            String content = message.getContent();
+            if (content == null || !content.startsWith(TAG)) {
+                return;
+            }
+            long sentAt = Long.parseLong(content.substring(TAG.length(), content.indexOf(':', TAG.length())));
+            if (sentAt - joinedAt >= 0) {
+                received.increment();
+                loop.record(System.nanoTime() - sentAt);
+            }
+        }
+
+        private void fail() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (running) {
+                errors.increment();
+            }
+            connected.decrementAndGet();
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * Log-linear latency histogram in microseconds: 32 linear sub-buckets per
+     * power of two, so any recorded value is reported within about 3%.
+     */
+    static final class Histogram {
+        private static final int SUB_BITS = 5;
+        private final AtomicLongArray counts = new AtomicLongArray(64 << SUB_BITS);
+        private final LongAdder total = new LongAdder();
+        volatile long max;
+
+        void record(long value) {
+            counts.incrementAndGet(index(Math.max(0, value)));
+            total.increment();
+            if (value > max) {
+                max = value;
+            }
+        }
+
+        void add(Histogram other) {
+            for (int i = 0; i < counts.length(); i++) {
+                long count = other.counts.get(i);
+                if (count != 0) {
+                    counts.addAndGet(i, count);
+                }
+            }
+            total.add(other.total.sum());
+            max = Math.max(max, other.max);
+        }
+
+        long percentile(double percentile) {
+            long count = total.sum();
+            if (count == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(count * percentile / 100.0);
+            long seen = 0;
+            for (int i = 0; i < counts.length(); i++) {
+                seen += counts.get(i);
+                if (seen >= rank) {
+                    return Math.min(upperBound(i), max);
+                }
+            }
+            return max;
+        }
+
+        private static int index(long value) {
+            if (value < (1 << SUB_BITS)) {
+                return (int) value;
+            }
+            int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+            return ((shift + 1) << SUB_BITS) + (int) (value >>> shift) - (1 << SUB_BITS);
+        }
+
+        private static long upperBound(int index) {
+            int magnitude = index >>> SUB_BITS;
+            long sub = index & ((1 << SUB_BITS) - 1);
+            if (magnitude == 0) {
+                return sub;
+            }
+            int shift = magnitude - 1;
+            return (((1L << SUB_BITS) + sub) << shift) + (1L << shift) - 1;
+        }
+    }
+}
@@ -0,0 +1,93 @@
+import java.io.*;
+import java.net.*;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * Side-by-side memory comparison of the server's execution modes.
+ *
+ * For each mode a fresh server process is started, the given number of idle
+ * clients connect and send CONNECT, and the server's resident memory and
+ * thread count are read from /proc before and after. Linux only; raise the
+ * open-file limit (ulimit -n) above the connection count first. Builds on
+ * JDK 8 but needs JDK 9+ to run (Process.pid), and JDK 21+ for virtual mode.
+ *
+ * Usage: java -cp . ThreadModeComparison [connections] [modes]
+ *   e.g. java -cp . ThreadModeComparison 10000 threads,virtual,nio
+ */
+public class ThreadModeComparison {
+    public static void main(String[] args) throws Exception {
+        int connections = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        String[] modes = (args.length > 1 ? args[1] : "threads,virtual").split(",");
+        int port = 5600;
+
+        System.out.printf("%-10s %12s %12s %10s %14s%n",
+            "mode", "rss_idle_kb", "rss_load_kb", "threads", "kb_per_conn");
+        for (String mode : modes) {
+            measure(mode.trim(), connections, port++);
+        }
+    }
+
+    private static void measure(String mode, int connections, int port) throws Exception {
+        String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        Process server = new ProcessBuilder(java, "-Dchat.mode=" + mode, "-Dchat.port=" + port,
+                "-cp", System.getProperty("java.class.path"), "Server")
+            .redirectErrorStream(true)
+            .redirectOutput(ProcessBuilder.Redirect.to(new File("/dev/null")))
+            .start();
+        List<Socket> sockets = new ArrayList<>(connections);
+        try {
+            waitForPort(port);
+            long pid = pid(server);
+            Thread.sleep(500);
+            long idleRss = status(pid, "VmRSS");
+
+            for (int i = 0; i < connections; i++) {
+                Socket socket = new Socket("localhost", port);
+                MessageCodec.writeFrame(socket.getOutputStream(),
+                    new Message(Message.MessageType.CONNECT, "idle-" + i, ""));
+                sockets.add(socket);
+            }
+            Thread.sleep(2000);
+
+            long loadRss = status(pid, "VmRSS");
+            long threads = status(pid, "Threads");
+            System.out.printf("%-10s %12d %12d %10d %14.1f%n", mode, idleRss, loadRss, threads,
+                (loadRss - idleRss) / (double) connections);
+        } catch (IOException e) {
+            System.out.printf("%-10s failed after %d connections: %s%n", mode, sockets.size(), e.getMessage());
+        } finally {
+            for (Socket socket : sockets) {
+                socket.close();
+            }
+            server.destroy();
+            server.waitFor();
+        }
+    }
+
+    private static void waitForPort(int port) throws InterruptedException, IOException {
+        for (int attempt = 0; attempt < 100; attempt++) {
+            try {
+                new Socket("localhost", port).close();
+                return;
+            } catch (ConnectException e) {
+                Thread.sleep(100);
+            }
+        }
+        throw new IOException("server did not start on port " + port);
+    }
+
+    // Process.pid() is JDK 9+, looked up reflectively so the bench still builds with --release 8
+    private static long pid(Process process) throws Exception {
+        return (Long) Process.class.getMethod("pid").invoke(process);
+    }
+
+    private static long status(long pid, String field) throws IOException {
+        for (String line : Files.readAllLines(Paths.get("/proc", String.valueOf(pid), "status"))) {
+            if (line.startsWith(field + ":")) {
+                return Long.parseLong(line.replaceAll("[^0-9]", ""));
+            }
+        }
+        return -1;
+    }
+}